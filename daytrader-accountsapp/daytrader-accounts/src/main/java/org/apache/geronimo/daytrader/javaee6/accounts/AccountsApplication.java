@@ -20,6 +20,7 @@ package org.apache.geronimo.daytrader.javaee6.accounts;
 import javax.sql.DataSource;
 
 import org.apache.catalina.Context;
+import org.apache.geronimo.daytrader.javaee6.accounts.utils.EnvSettings;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.tomcat.util.descriptor.web.ContextResource;
 import org.springframework.boot.SpringApplication;
@@ -41,6 +42,21 @@ public class AccountsApplication extends SpringBootServletInitializer {
     private static String username = System.getenv("DAYTRADER_DATABASE_USERNAME");
     private static String password = System.getenv("DAYTRADER_DATABASE_PASSWORD");
 
+//  Configure the connection pool: DAYTRADER_DATABASE_POOL=hikari selects HikariCP (a lock-free
+//  pool with fast validation) in place of the default Tomcat DBCP; both are sized from the
+//  environment and pre-filled with the minimum idle connections at startup
+    private static String pool = System.getenv("DAYTRADER_DATABASE_POOL");
+    private static int poolMaxSize = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MAX_SIZE", 100);
+    private static int poolMinIdle = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MIN_IDLE", 10);
+    private static int poolMaxIdle = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MAX_IDLE", 30);
+    private static int poolMaxWait = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MAX_WAIT", 10000);
+    private static int poolMaxLifetime = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MAX_LIFETIME", 1800000);
+    private static int poolValidationTimeout = EnvSettings.getInt("DAYTRADER_DATABASE_POOL_VALIDATION_TIMEOUT", 3000);
+    // Without a validation query the pools validate with the driver's Connection.isValid()
+    private static String validationQuery = System.getenv("DAYTRADER_DATABASE_VALIDATION_QUERY");
+    // The prepared statements each connection keeps for its next checkouts; 0 turns the caching off
+    private static int statementCacheSize = EnvSettings.getInt("DAYTRADER_STATEMENT_CACHE_SIZE", 50);
+
 	@Override
 	protected SpringApplicationBuilder configure(SpringApplicationBuilder application) {
 		return application.sources(AccountsApplication.class);
@@ -73,20 +89,98 @@ public class AccountsApplication extends SpringBootServletInitializer {
 				accountsDataSource.setName("jdbc/AccountsDataSource");
 				accountsDataSource.setAuth("Container");
 				accountsDataSource.setType(DataSource.class.getName());
-				// Set Database Properties
-				accountsDataSource.setProperty("driverClassName", driverClassName);
-				accountsDataSource.setProperty("url", url);
-				accountsDataSource.setProperty("username", username);
-				accountsDataSource.setProperty("password", password);
-				accountsDataSource.setProperty("maxActive", "100");
-				accountsDataSource.setProperty("maxIdle", "30");
-				accountsDataSource.setProperty("maxWait", "10000");
+				if ("hikari".equalsIgnoreCase(pool))
+				{
+					setHikariProperties(accountsDataSource);
+				}
+				else
+				{
+					setDbcpProperties(accountsDataSource);
+				}
 				context.getNamingResources().addResource(accountsDataSource);
 			}
 		};
 		
 	    return factory;
 	}
-	
+
+	/*
+	 * Tomcat DBCP (the default factory of the Tomcat JNDI resources)
+	 */
+	private static void setDbcpProperties(ContextResource resource)
+	{
+		// Set Database Properties
+		setProperty(resource, "driverClassName", driverClassName);
+		setProperty(resource, "url", url);
+		setProperty(resource, "username", username);
+		setProperty(resource, "password", password);
+		setProperty(resource, "maxTotal", poolMaxSize);
+		setProperty(resource, "maxIdle", Math.max(poolMaxIdle, poolMinIdle));
+		setProperty(resource, "minIdle", poolMinIdle);
+		setProperty(resource, "initialSize", poolMinIdle);
+		setProperty(resource, "maxWaitMillis", poolMaxWait);
+		setProperty(resource, "maxConnLifetimeMillis", (poolMaxLifetime > 0) ? poolMaxLifetime : -1);
+		setProperty(resource, "validationQuery", validationQuery);
+		setProperty(resource, "validationQueryTimeout", Math.max(1, poolValidationTimeout / 1000));
+		// The statements prepared through a connection go back to its pool of statements on close
+		if (statementCacheSize > 0)
+		{
+			setProperty(resource, "poolPreparedStatements", "true");
+			setProperty(resource, "maxOpenPreparedStatements", statementCacheSize);
+		}
+	}
+
+	/*
+	 * HikariCP, through its own JNDI factory
+	 */
+	private static void setHikariProperties(ContextResource resource)
+	{
+		setProperty(resource, "factory", "com.zaxxer.hikari.HikariJNDIFactory");
+		setProperty(resource, "poolName", "AccountsDataSource");
+		// Set Database Properties
+		setProperty(resource, "driverClassName", driverClassName);
+		setProperty(resource, "jdbcUrl", url);
+		setProperty(resource, "username", username);
+		setProperty(resource, "password", password);
+		setProperty(resource, "maximumPoolSize", poolMaxSize);
+		setProperty(resource, "minimumIdle", poolMinIdle);
+		setProperty(resource, "connectionTimeout", poolMaxWait);
+		setProperty(resource, "maxLifetime", poolMaxLifetime);
+		setProperty(resource, "validationTimeout", poolValidationTimeout);
+		setProperty(resource, "connectionTestQuery", validationQuery);
+		// Wait (up to the connection timeout) for the minimum idle connections when the pool starts
+		setProperty(resource, "initializationFailTimeout", poolMaxWait);
+		System.setProperty("com.zaxxer.hikari.blockUntilFilled", "true");
+		setDriverStatementCache(resource);
+	}
+
+	/*
+	 * HikariCP has no statement cache of its own, so turn on the driver's (passed as the
+	 * driver's properties); the other drivers keep their defaults
+	 */
+	private static void setDriverStatementCache(ContextResource resource)
+	{
+		if (url == null || statementCacheSize <= 0) return;
+		if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:"))
+		{
+			setProperty(resource, "dataSource.cachePrepStmts", "true");
+			setProperty(resource, "dataSource.prepStmtCacheSize", statementCacheSize);
+			setProperty(resource, "dataSource.prepStmtCacheSqlLimit", 2048);
+			setProperty(resource, "dataSource.useServerPrepStmts", "true");
+		}
+		else if (url.startsWith("jdbc:postgresql:"))
+		{
+			setProperty(resource, "dataSource.preparedStatementCacheQueries", statementCacheSize);
+		}
+	}
+
+	/*
+	 * The JNDI factories can't take a null property; unset properties keep the pool's default
+	 */
+	private static void setProperty(ContextResource resource, String name, Object value)
+	{
+		if (value != null) resource.setProperty(name, value.toString());
+	}
+
 }
 
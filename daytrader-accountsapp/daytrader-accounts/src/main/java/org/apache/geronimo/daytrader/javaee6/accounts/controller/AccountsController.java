@@ -19,13 +19,27 @@ package org.apache.geronimo.daytrader.javaee6.accounts.controller;
 
 // DayTrader
 import org.apache.geronimo.daytrader.javaee6.accounts.service.AccountsService;
+import org.apache.geronimo.daytrader.javaee6.accounts.service.AsyncRemoteClient;
+import org.apache.geronimo.daytrader.javaee6.accounts.service.BuildProgress;
+import org.apache.geronimo.daytrader.javaee6.accounts.service.RemoteClientPool;
 import org.apache.geronimo.daytrader.javaee6.accounts.utils.Log;
 
 // Java
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPOutputStream;
 
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.NotAuthorizedException;
 
 // Daytrader
@@ -77,6 +91,15 @@ public class AccountsController
 {
 	private static AccountsService accountsService = new AccountsService();
 
+	/**
+	 * Releases the service's threads and writes its pending counters on shutdown
+	 */
+	@PreDestroy
+	public void destroy()
+	{
+		AccountsService.destroy();
+	}
+
 	//
 	// Account Related Endpoints
 	//
@@ -178,15 +201,20 @@ public class AccountsController
 	/**
 	 * REST call to get the user's account
 	 * 
+	 * The optional maxStaleness (milliseconds) bounds how old a cached balance may be, up to
+	 * DAYTRADER_BALANCE_CACHE_MAX_STALENESS; use 0 to always get the current balance from the
+	 * portfolios. Balances are only cached when DAYTRADER_BALANCE_CACHE_SIZE is set.
+	 * 
 	 */
 	@RequestMapping(value = "/accounts/{userId}", method = RequestMethod.GET)
-	public ResponseEntity<AccountDataBean> getAccountData(@PathVariable("userId") String userId) 
+	public ResponseEntity<AccountDataBean> getAccountData(@PathVariable("userId") String userId,
+			@RequestParam(value = "maxStaleness", required = false) Long maxStaleness) 
 	{
 		Log.traceEnter("AccountsController.getAccountData()");
 		AccountDataBean accountData = null;
 		try
 		{
-			accountData = accountsService.getAccountData(userId);
+			accountData = accountsService.getAccountData(userId, (maxStaleness != null) ? maxStaleness.longValue() : -1);
 			if (accountData != null) 
 			{
 	            Log.traceExit("AccountsController.getAccountData()");
@@ -206,6 +234,70 @@ public class AccountsController
 
 	}
 
+	/**
+	 * REST call to get the accounts of many users at once (e.g. /accounts?userIds=uid:0,uid:1)
+	 * 
+	 * The accounts are returned in the order of the given user ids; unknown users are left out.
+	 * More than DAYTRADER_ACCOUNTS_MAX_USER_IDS user ids (default 1000) are a bad request.
+	 * 
+	 */
+	@RequestMapping(value = "/accounts", method = RequestMethod.GET)
+	public ResponseEntity<List<AccountDataBean>> getAccountsData(
+			@RequestParam(value = "userIds") List<String> userIds,
+			@RequestParam(value = "maxStaleness", required = false) Long maxStaleness) 
+	{
+		Log.traceEnter("AccountsController.getAccountsData()");
+		try
+		{
+			List<AccountDataBean> accountsData = accountsService.getAccountsData(userIds, (maxStaleness != null) ? maxStaleness.longValue() : -1);
+            Log.traceExit("AccountsController.getAccountsData()");
+			return new ResponseEntity<List<AccountDataBean>>(accountsData, getNoCacheHeaders(), HttpStatus.OK);
+		}
+		catch(IllegalArgumentException iae)
+		{
+     		Log.error("AccountsController.getAccountsData()",iae);
+			return new ResponseEntity<List<AccountDataBean>>(HttpStatus.BAD_REQUEST);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getAccountsData()",t);
+			return new ResponseEntity<List<AccountDataBean>>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * REST call to register the users streamed in the request body, one AccountDataBean per line (NDJSON).
+	 * 
+	 * One result per user is streamed back (NDJSON) as each batch is committed; see AccountsService#registerBulk.
+	 * The optional batchSize sets how many users are inserted, forwarded to the portfolios and committed at once.
+	 * 
+	 */
+	@RequestMapping(value = "/accounts/bulk", method = RequestMethod.POST)
+	public void registerBulk(@RequestParam(value = "batchSize", required = false) Integer batchSize,
+			HttpServletRequest request, HttpServletResponse response)
+	{
+		Log.traceEnter("AccountsController.registerBulk()");
+		try
+		{
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType("application/x-ndjson");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			accountsService.registerBulk(request.getInputStream(), response.getOutputStream(), (batchSize != null) ? batchSize : 0);
+            Log.traceExit("AccountsController.registerBulk()");
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.registerBulk()",t);
+     		// once results were streamed the status is sent; the results end early instead
+     		if (!response.isCommitted())
+     		{
+     			response.reset();
+     			response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+     		}
+		}
+	}
+
 	//
 	// Authentication Related Endpoints
 	//
@@ -260,6 +352,118 @@ public class AccountsController
 		}	
 	}
 	
+	//
+	// Asynchronous Endpoints
+	//
+	// The request thread is released as soon as the operation is started; the response is
+	// written when the returned future completes (see AccountsService#getAccountDataAsync).
+	// A full JDBC executor is reported as 503 Service Unavailable.
+	//
+
+	/**
+	 * Asynchronous version of POST /accounts
+	 * 
+	 */
+	@RequestMapping(value = "/async/accounts", method = RequestMethod.POST)
+	public CompletableFuture<ResponseEntity<AccountDataBean>> registerAsync (
+			@RequestBody AccountDataBean accountData) 
+	{
+		Log.traceEnter("AccountsController.registerAsync(" + accountData.getProfileID() + ")");
+		try
+		{
+			return accountsService.registerAsync(accountData.getProfileID(), accountData.getProfile().getPassword(),
+					accountData.getProfile().getFullName(), accountData.getProfile().getAddress(), accountData.getProfile().getEmail(),
+					accountData.getProfile().getCreditCard(), accountData.getOpenBalance())
+				.handle(new AsyncResponse<AccountDataBean>("AccountsController.registerAsync()", HttpStatus.CREATED));
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.registerAsync()",t);
+			return CompletableFuture.completedFuture(new ResponseEntity<AccountDataBean>(HttpStatus.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * Asynchronous version of GET /accounts/{userId}
+	 * 
+	 */
+	@RequestMapping(value = "/async/accounts/{userId}", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<AccountDataBean>> getAccountDataAsync(@PathVariable("userId") String userId,
+			@RequestParam(value = "maxStaleness", required = false) Long maxStaleness) 
+	{
+		Log.traceEnter("AccountsController.getAccountDataAsync()");
+		try
+		{
+			return accountsService.getAccountDataAsync(userId, (maxStaleness != null) ? maxStaleness.longValue() : -1)
+				.handle(new AsyncResponse<AccountDataBean>("AccountsController.getAccountDataAsync()", HttpStatus.OK));
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getAccountDataAsync()",t);
+			return CompletableFuture.completedFuture(new ResponseEntity<AccountDataBean>(HttpStatus.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * Asynchronous version of PATCH /login/{userId}
+	 * 
+	 */
+	@RequestMapping(value = "/async/login/{userId}", method = RequestMethod.PATCH)
+	public CompletableFuture<ResponseEntity<AccountDataBean>> loginAsync (@PathVariable("userId") String userId, @RequestBody String password)
+	{
+		Log.traceEnter("AccountsController.loginAsync()");
+		try
+		{
+			return accountsService.loginAsync(userId, password)
+				.handle(new AsyncResponse<AccountDataBean>("AccountsController.loginAsync()", HttpStatus.OK));
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.loginAsync()",t);
+			return CompletableFuture.completedFuture(new ResponseEntity<AccountDataBean>(HttpStatus.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/*
+	 * Turns the outcome of an asynchronous operation into the response: the given status with
+	 * the body, 204 without a body, 401 for a failed login, 503 when the JDBC executor is full
+	 * and 500 otherwise
+	 */
+	private class AsyncResponse<T> implements BiFunction<T, Throwable, ResponseEntity<T>>
+	{
+		private final String method;
+		private final HttpStatus status;
+
+		AsyncResponse(String method, HttpStatus status)
+		{
+			this.method = method;
+			this.status = status;
+		}
+
+		public ResponseEntity<T> apply(T body, Throwable failure)
+		{
+			if (failure instanceof CompletionException && failure.getCause() != null)
+			{
+				failure = failure.getCause();
+			}
+			if (failure == null)
+			{
+				Log.traceExit(method);
+				return new ResponseEntity<T>(body, getNoCacheHeaders(), (body != null) ? status : HttpStatus.NO_CONTENT);
+			}
+			Log.error(method, failure);
+			if (failure instanceof NotAuthorizedException)
+			{
+				return new ResponseEntity<T>(HttpStatus.UNAUTHORIZED);
+			}
+			if (failure instanceof RejectedExecutionException)
+			{
+				return new ResponseEntity<T>(HttpStatus.SERVICE_UNAVAILABLE);
+			}
+			return new ResponseEntity<T>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+	
 	//
 	// Admin Related Endpoints
 	//
@@ -267,18 +471,28 @@ public class AccountsController
 	/**
 	 * REST call to register the specified number of users.
 	 * 
+	 * The optional batchSize and commitInterval (rows) tune the bulk load; the optional
+	 * parallelism splits the range into that many partitions populated concurrently, up to a
+	 * quarter of the database pool.
+	 * 
 	 */
 	@RequestMapping(value = "/admin/tradeBuildDB", method = RequestMethod.POST)
 	public ResponseEntity<Boolean> tradeBuildDB( 
 			@RequestParam(value = "limit") Integer limit,
-			@RequestParam(value = "offset") Integer offset) 
+			@RequestParam(value = "offset") Integer offset,
+			@RequestParam(value = "batchSize", required = false) Integer batchSize,
+			@RequestParam(value = "commitInterval", required = false) Integer commitInterval,
+			@RequestParam(value = "parallelism", required = false) Integer parallelism) 
 	{
 		Log.traceEnter("AccountsController.tradeBuildDB()");
 		Boolean result = false;
 		try
 		{
 			// Register the sample users
-			result = accountsService.tradeBuildDB(limit.intValue(), offset.intValue());
+			result = accountsService.tradeBuildDB(limit.intValue(), offset.intValue(), 
+					(batchSize != null) ? batchSize.intValue() : 0, 
+					(commitInterval != null) ? commitInterval.intValue() : 0,
+					(parallelism != null) ? parallelism.intValue() : 0);
             Log.traceExit("AccountsController.tradeBuildDB()");
 			return new ResponseEntity<Boolean>(result, getNoCacheHeaders(), HttpStatus.CREATED);
 		}
@@ -289,6 +503,78 @@ public class AccountsController
 		}
 	}
 	
+	/**
+	 * REST call to populate the accounts from a file in DAYTRADER_IMPORT_DIR instead of random users.
+	 * 
+	 * The format is csv (with a header line) or fixed (with the layout of the fields, e.g. 
+	 * userid:16,fullname:32); see AccountsFile. The optional resume continues an interrupted import
+	 * with the resumeRanges its progress reported. The optional batchSize, commitInterval and
+	 * parallelism are those of tradeBuildDB.
+	 * 
+	 */
+	@RequestMapping(value = "/admin/tradeBuildDB/import", method = RequestMethod.POST)
+	public ResponseEntity<Boolean> tradeImportDB( 
+			@RequestParam(value = "file") String file,
+			@RequestParam(value = "format", required = false, defaultValue = "csv") String format,
+			@RequestParam(value = "layout", required = false) String layout,
+			@RequestParam(value = "resume", required = false) String resume,
+			@RequestParam(value = "batchSize", required = false) Integer batchSize,
+			@RequestParam(value = "commitInterval", required = false) Integer commitInterval,
+			@RequestParam(value = "parallelism", required = false) Integer parallelism) 
+	{
+		Log.traceEnter("AccountsController.tradeImportDB()");
+		Boolean result = false;
+		try
+		{
+			result = accountsService.tradeImportDB(file, format, layout, 
+					resume,
+					(batchSize != null) ? batchSize.intValue() : 0, 
+					(commitInterval != null) ? commitInterval.intValue() : 0,
+					(parallelism != null) ? parallelism.intValue() : 0);
+            Log.traceExit("AccountsController.tradeImportDB()");
+			return new ResponseEntity<Boolean>(result, getNoCacheHeaders(), HttpStatus.CREATED);
+		}
+		catch(IllegalArgumentException iae)
+		{
+     		Log.error("AccountsController.tradeImportDB()",iae);
+			return new ResponseEntity<Boolean>(HttpStatus.BAD_REQUEST);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.tradeImportDB()",t);
+			return new ResponseEntity<Boolean>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+	
+	/**
+	 * REST call to get the per partition progress and the rows per second of tradeBuildDB (or of its import)
+	 * 
+	 */
+	@RequestMapping(value = "/admin/tradeBuildDB/progress", method = RequestMethod.GET)
+	public ResponseEntity<BuildProgress> getBuildProgress() 
+	{
+		Log.traceEnter("AccountsController.getBuildProgress()");
+		try
+		{
+			BuildProgress progress = accountsService.getBuildProgress();
+			if (progress != null)
+			{
+	            Log.traceExit("AccountsController.getBuildProgress()");
+				return new ResponseEntity<BuildProgress>(progress, getNoCacheHeaders(), HttpStatus.OK);
+			}
+			else
+			{
+	            Log.traceExit("AccountsController.getBuildProgress()");
+				return new ResponseEntity<BuildProgress>(progress, getNoCacheHeaders(), HttpStatus.NO_CONTENT);
+			}
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getBuildProgress()",t);
+			return new ResponseEntity<BuildProgress>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+	
 	/**
 	 * REST call to recreate dbtables
 	 * 
@@ -341,6 +627,141 @@ public class AccountsController
 		}
 	}
 		
+	/**
+	 * REST call to export the accounts and their profiles (without the passwords and credit cards) as NDJSON or CSV.
+	 * 
+	 * The rows are streamed as they are read; see AccountsService#exportAccounts. The optional fromUserId
+	 * (inclusive) and toUserId (exclusive) bound the user ids exported, so ranges can be exported in parallel;
+	 * gzip=true compresses the response (Content-Encoding: gzip).
+	 * 
+	 */
+	@RequestMapping(value = "/admin/accounts/export", method = RequestMethod.GET)
+	public void exportAccounts(
+			@RequestParam(value = "format", required = false, defaultValue = "ndjson") String format,
+			@RequestParam(value = "gzip", required = false, defaultValue = "false") boolean gzip,
+			@RequestParam(value = "fromUserId", required = false) String fromUserId,
+			@RequestParam(value = "toUserId", required = false) String toUserId,
+			HttpServletResponse response)
+	{
+		Log.traceEnter("AccountsController.exportAccounts()");
+		try
+		{
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType("csv".equalsIgnoreCase(format) ? "text/csv" : "application/x-ndjson");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			OutputStream out = response.getOutputStream();
+			if (gzip)
+			{
+				response.setHeader("Content-Encoding", "gzip");
+				out = new GZIPOutputStream(out, 64 * 1024);
+			}
+			accountsService.exportAccounts(out, format, fromUserId, toUserId);
+			if (gzip) ((GZIPOutputStream) out).finish();
+            Log.traceExit("AccountsController.exportAccounts()");
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.exportAccounts()",t);
+     		// once rows were streamed the status is sent; the export ends early instead
+     		if (!response.isCommitted())
+     		{
+     			response.reset();
+     			response.setStatus((t instanceof IllegalArgumentException) // e.g. an unsupported format
+     					? HttpStatus.BAD_REQUEST.value() : HttpStatus.INTERNAL_SERVER_ERROR.value());
+     		}
+		}
+	}
+		
+	/**
+	 * REST call to get the connection pool statistics of the remote call services
+	 * 
+	 */
+	@RequestMapping(value = "/admin/remoteCallPoolStats", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Map<String, Integer>>> getRemoteCallPoolStats()
+	{
+		Log.traceEnter("AccountsController.getRemoteCallPoolStats()");
+		try
+		{
+			Map<String, Map<String, Integer>> poolStats = RemoteClientPool.getAllStats();
+			if (AsyncRemoteClient.isStarted())
+			{
+				poolStats.put("async", AsyncRemoteClient.getInstance().getStats());
+			}
+			Log.traceExit("AccountsController.getRemoteCallPoolStats()");
+			return new ResponseEntity<Map<String, Map<String, Integer>>>(poolStats, getNoCacheHeaders(), HttpStatus.OK);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getRemoteCallPoolStats()",t);
+			return new ResponseEntity<Map<String, Map<String, Integer>>>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+		
+	/**
+	 * REST call to get the hits, misses and evictions of the balance cache
+	 * 
+	 */
+	@RequestMapping(value = "/admin/balanceCacheStats", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Long>> getBalanceCacheStats()
+	{
+		Log.traceEnter("AccountsController.getBalanceCacheStats()");
+		try
+		{
+			Map<String, Long> cacheStats = accountsService.getBalanceCacheStats();
+			Log.traceExit("AccountsController.getBalanceCacheStats()");
+			return new ResponseEntity<Map<String, Long>>(cacheStats, getNoCacheHeaders(), HttpStatus.OK);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getBalanceCacheStats()",t);
+			return new ResponseEntity<Map<String, Long>>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+		
+	/**
+	 * REST call to get the pending users and flushes of the write-behind login counters
+	 * 
+	 */
+	@RequestMapping(value = "/admin/loginCounterStats", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Long>> getLoginCounterStats()
+	{
+		Log.traceEnter("AccountsController.getLoginCounterStats()");
+		try
+		{
+			Map<String, Long> counterStats = accountsService.getLoginCounterStats();
+			Log.traceExit("AccountsController.getLoginCounterStats()");
+			return new ResponseEntity<Map<String, Long>>(counterStats, getNoCacheHeaders(), HttpStatus.OK);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getLoginCounterStats()",t);
+			return new ResponseEntity<Map<String, Long>>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+		
+	/**
+	 * REST call to get the acquire, hold and leak statistics of the database connections and
+	 * the execution times of the SQL texts
+	 * 
+	 */
+	@RequestMapping(value = "/admin/connectionStats", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getConnectionStats()
+	{
+		Log.traceEnter("AccountsController.getConnectionStats()");
+		try
+		{
+			Map<String, Object> connectionStats = accountsService.getConnectionStats();
+			Log.traceExit("AccountsController.getConnectionStats()");
+			return new ResponseEntity<Map<String, Object>>(connectionStats, getNoCacheHeaders(), HttpStatus.OK);
+		}
+     	catch(Throwable t)
+     	{
+     		Log.error("AccountsController.getConnectionStats()",t);
+			return new ResponseEntity<Map<String, Object>>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+		
 	//
 	// Private helper functions
 	//
@@ -0,0 +1,390 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A file of accounts and profiles imported by AccountsService#tradeImportDB, read through
+ * memory-mapped regions of a FileChannel.
+ *
+ * - csv: the first line names the columns, as in the CSV of GET /admin/accounts/export. The
+ *   userid column is required; passwd, fullname, address, email and creditcard are read when
+ *   present and any other column is ignored. A quoted field may contain commas and "" quotes.
+ * - fixed: the layout names the fields and their widths in bytes, e.g.
+ *   "userid:16,fullname:32,address:48,email:40,creditcard:20"; the fields are trimmed and a
+ *   field with another name is skipped.
+ *
+ * Each record is a line (LF or CRLF), so the file is split at line breaks into chunks that are
+ * mapped and parsed on their own by parallel workers. A quoted field therefore can't contain a
+ * line break: a quote left open at the end of a line, or a quote inside an unquoted field (the
+ * rest of such a field on the next line), fails the import. A record is parsed in place: its
+ * fields are kept as offsets into the mapped buffer and a field is only decoded when it is read.
+ *
+ */
+
+public class AccountsFile implements Closeable
+{
+	public static final int USERID = 0;
+	public static final int PASSWD = 1;
+	public static final int FULLNAME = 2;
+	public static final int ADDRESS = 3;
+	public static final int EMAIL = 4;
+	public static final int CREDITCARD = 5;
+
+	private static final String[] COLUMN_NAMES = { "userid", "passwd", "fullname", "address", "email", "creditcard" };
+
+	// a mapped region is at most this large, so a bigger file is split into more chunks
+	private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+	private final boolean csv;
+	private final int[] columns; // the column (USERID, ...) of each field of a record, or -1
+	private final int[] widths; // the width of each field of a fixed width record
+	private final long dataStart; // the offset of the first record
+
+	private AccountsFile(FileChannel channel, boolean csv, int[] columns, int[] widths, long dataStart) throws IOException
+	{
+		this.channel = channel;
+		this.size = channel.size();
+		this.csv = csv;
+		this.columns = columns;
+		this.widths = widths;
+		this.dataStart = dataStart;
+	}
+
+	/**
+	 * Opens the file in the given format (csv, the default, or fixed with its layout)
+	 */
+	public static AccountsFile open(String fileName, String format, String layout) throws IOException
+	{
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		boolean opened = false;
+		try
+		{
+			AccountsFile file;
+			if ("fixed".equalsIgnoreCase(format))
+			{
+				file = openFixed(channel, layout);
+			}
+			else if (format == null || "csv".equalsIgnoreCase(format))
+			{
+				file = openCSV(channel);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unsupported import format: " + format);
+			}
+			opened = true;
+			return file;
+		}
+		finally
+		{
+			if (!opened) channel.close();
+		}
+	}
+
+	private static AccountsFile openFixed(FileChannel channel, String layout) throws IOException
+	{
+		if (layout == null || layout.trim().isEmpty())
+		{
+			throw new IllegalArgumentException("A fixed width file needs a layout, e.g. userid:16,fullname:32");
+		}
+		String[] fields = layout.split(",");
+		int[] columns = new int[fields.length];
+		int[] widths = new int[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			String[] field = fields[i].split(":");
+			if (field.length != 2) throw new IllegalArgumentException("Invalid layout field (name:width): " + fields[i]);
+			columns[i] = columnOf(field[0]);
+			widths[i] = Integer.parseInt(field[1].trim());
+			if (widths[i] < 1) throw new IllegalArgumentException("Invalid layout field width: " + fields[i]);
+		}
+		return new AccountsFile(channel, false, requireUserID(columns), widths, 0);
+	}
+
+	private static AccountsFile openCSV(FileChannel channel) throws IOException
+	{
+		// the header is the first line
+		ByteBuffer header = ByteBuffer.allocate((int) Math.min(channel.size(), MAX_HEADER_SIZE));
+		while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+		int length = 0;
+		while (length < header.position() && header.get(length) != '\n') length++;
+		if (length == header.position() && length < channel.size())
+		{
+			throw new IllegalArgumentException("The header line of the file is longer than " + MAX_HEADER_SIZE + " bytes");
+		}
+		long dataStart = Math.min(length + 1, channel.size());
+		if (length > 0 && header.get(length - 1) == '\r') length--;
+
+		String[] names = new String(header.array(), 0, length, StandardCharsets.UTF_8).split(",");
+		int[] columns = new int[names.length];
+		for (int i = 0; i < names.length; i++)
+		{
+			columns[i] = columnOf(names[i].replace("\"", ""));
+		}
+		return new AccountsFile(channel, true, requireUserID(columns), null, dataStart);
+	}
+
+	private static int columnOf(String name)
+	{
+		name = name.trim().toLowerCase(Locale.ROOT);
+		if ("profile_userid".equals(name) || "profileid".equals(name)) return USERID;
+		if ("password".equals(name)) return PASSWD;
+		return Arrays.asList(COLUMN_NAMES).indexOf(name);
+	}
+
+	private static int[] requireUserID(int[] columns)
+	{
+		for (int column : columns)
+		{
+			if (column == USERID) return columns;
+		}
+		throw new IllegalArgumentException("The file has no userid column");
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Splits the records from the given offset to the end of the file into at least the given
+	 * number of line aligned [start, end) ranges
+	 */
+	public List<long[]> split(long from, int chunks) throws IOException
+	{
+		return split(from, size, chunks);
+	}
+
+	/**
+	 * Splits the records from the given offset up to the given end offset (a record start or the
+	 * end of the file) into at least the given number of line aligned [start, end) ranges
+	 */
+	public List<long[]> split(long from, long to, int chunks) throws IOException
+	{
+		long start = lineStart(from);
+		long end = Math.min(to, size);
+		long length = Math.max(0, end - start);
+		chunks = (int) Math.max(Math.max(1, chunks), (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		List<long[]> ranges = new ArrayList<long[]>(chunks);
+		long chunkStart = start;
+		for (int i = 1; i <= chunks && chunkStart < end; i++)
+		{
+			long chunkEnd = (i == chunks) ? end : Math.min(end, lineStart(start + (length * i) / chunks));
+			if (chunkEnd > chunkStart) ranges.add(new long[] { chunkStart, chunkEnd });
+			chunkStart = chunkEnd;
+		}
+		return ranges;
+	}
+
+	/*
+	 * The offset of the first record that starts at or after the given offset
+	 */
+	private long lineStart(long offset) throws IOException
+	{
+		if (offset <= dataStart) return dataStart;
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+		long position = offset - 1; // a record starts right after a line break
+		while (position < size)
+		{
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) break;
+			for (int i = 0; i < read; i++)
+			{
+				if (buffer.get(i) == '\n') return position + i + 1;
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Maps the [start, end) range of the file to read its records
+	 */
+	public Records read(long start, long end) throws IOException
+	{
+		return new Records(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), start);
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	 * The records of a mapped range of the file; used by one thread
+	 */
+	public class Records
+	{
+		private final MappedByteBuffer buffer;
+		private final long base;
+		private int position = 0; // of the next record
+
+		// the fields of the current record, by column
+		private final int[] fieldStart = new int[COLUMN_NAMES.length];
+		private final int[] fieldEnd = new int[COLUMN_NAMES.length];
+		private final boolean[] fieldQuoted = new boolean[COLUMN_NAMES.length];
+		private byte[] decodeBuffer = new byte[256];
+
+		Records(MappedByteBuffer buffer, long base)
+		{
+			this.buffer = buffer;
+			this.base = base;
+		}
+
+		/**
+		 * Moves to the next record; blank lines are skipped. Throws an IllegalArgumentException
+		 * if a quoted CSV field spans lines
+		 */
+		public boolean next()
+		{
+			int limit = buffer.limit();
+			while (position < limit)
+			{
+				int lineEnd = position;
+				while (lineEnd < limit && buffer.get(lineEnd) != '\n') lineEnd++;
+				int recordEnd = (lineEnd > position && buffer.get(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+				int recordStart = position;
+				position = Math.min(lineEnd + 1, limit);
+				if (recordEnd == recordStart) continue;
+
+				Arrays.fill(fieldStart, -1);
+				if (csv) parseCSV(recordStart, recordEnd);
+				else parseFixed(recordStart, recordEnd);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * The offset in the file after the current record
+		 */
+		public long getOffset()
+		{
+			return base + position;
+		}
+
+		/**
+		 * Moves back (or forward) to the record at the given offset in the file
+		 */
+		public void seek(long offset)
+		{
+			position = (int) (offset - base);
+		}
+
+		/**
+		 * Decodes the given column (USERID, ...) of the current record; null if it is absent or empty
+		 */
+		public String get(int column)
+		{
+			int start = fieldStart[column];
+			int length = fieldEnd[column] - start;
+			if (start < 0 || length <= 0) return null;
+			if (length > decodeBuffer.length) decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+			for (int i = 0; i < length; i++)
+			{
+				decodeBuffer[i] = buffer.get(start + i);
+			}
+			String field = new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+			return fieldQuoted[column] ? field.replace("\"\"", "\"") : field;
+		}
+
+		private void parseCSV(int start, int end)
+		{
+			int p = start;
+			for (int field = 0; ; field++)
+			{
+				int valueStart, valueEnd;
+				boolean quoted = p < end && buffer.get(p) == '"';
+				if (quoted)
+				{
+					valueStart = p + 1;
+					valueEnd = valueStart;
+					while (valueEnd < end)
+					{
+						if (buffer.get(valueEnd) != '"') valueEnd++;
+						else if (valueEnd + 1 < end && buffer.get(valueEnd + 1) == '"') valueEnd += 2;
+						else break;
+					}
+					if (valueEnd >= end) throw invalidRecord(start, "a quoted field isn't closed on its line");
+					p = valueEnd;
+					while (p < end && buffer.get(p) != ',') p++; // past the closing quote
+				}
+				else
+				{
+					valueStart = p;
+					while (p < end && buffer.get(p) != ',')
+					{
+						if (buffer.get(p) == '"') throw invalidRecord(start, "a quote inside an unquoted field");
+						p++;
+					}
+					valueEnd = p;
+				}
+				setField(field, valueStart, valueEnd, quoted);
+				if (p >= end) return;
+				p++; // the comma
+			}
+		}
+
+		private IllegalArgumentException invalidRecord(int start, String reason)
+		{
+			return new IllegalArgumentException("Invalid record at offset " + (base + start) + ": " + reason 
+					+ " (a quoted field can't contain a line break)");
+		}
+
+		private void parseFixed(int start, int end)
+		{
+			int p = start;
+			for (int field = 0; field < widths.length && p < end; field++)
+			{
+				int valueStart = p;
+				int valueEnd = Math.min(p + widths[field], end);
+				p = valueEnd;
+				while (valueStart < valueEnd && buffer.get(valueStart) == ' ') valueStart++;
+				while (valueEnd > valueStart && buffer.get(valueEnd - 1) == ' ') valueEnd--;
+				setField(field, valueStart, valueEnd, false);
+			}
+		}
+
+		private void setField(int field, int start, int end, boolean quoted)
+		{
+			int column = (field < columns.length) ? columns[field] : -1;
+			if (column < 0) return;
+			fieldStart[column] = start;
+			fieldEnd[column] = end;
+			fieldQuoted[column] = quoted;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+// Micrometer
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The timers and gauges of the accounts service, recorded in Micrometer's global registry.
+ *
+ * Spring Boot adds its registries (e.g. Prometheus, scraped at /prometheus) to the global
+ * registry, so the static service code records without a bean to inject; outside Spring
+ * (e.g. the benchmarks) the global registry is empty and recording does nothing.
+ *
+ * - daytrader.accounts.operation{operation,outcome}: each AccountsService operation
+ * - daytrader.accounts.statement{type,table,outcome}: each execution of a DB statement; only with
+ *   DAYTRADER_STATEMENT_METRICS=true, as it multiplies the series by the statements
+ * - daytrader.accounts.portfolios{call,outcome}: each call to the Portfolios
+ * - daytrader.accounts.db.connection.acquire{outcome}: the wait for a pooled connection
+ * - daytrader.accounts.db.connection.hold{remote}: the time a connection was held, and whether
+ *   the holder made a remote call meanwhile (see InstrumentedDataSource)
+ * - daytrader.accounts.db.connection.leaks: the connections held longer than the leak threshold
+ * - daytrader.accounts.db.pool.connections{state}: active, idle, max and waiting connections
+ * - daytrader.accounts.remote.pool.connections{route,state}: leased, available, pending and max
+ *
+ * The timers publish histogram buckets (not client-side percentiles), so recording costs a few
+ * counter increments and the percentiles are computed (and aggregated across pods) by Prometheus.
+ * The timers are looked up once per name; DAYTRADER_METRICS=false turns recording off, together
+ * with the timers of the controller endpoints (see application.properties).
+ *
+ */
+
+public class AccountsMetrics
+{
+	public static final String OPERATION = "daytrader.accounts.operation";
+	public static final String STATEMENT = "daytrader.accounts.statement";
+	public static final String PORTFOLIOS = "daytrader.accounts.portfolios";
+	public static final String CONNECTION_ACQUIRE = "daytrader.accounts.db.connection.acquire";
+	public static final String CONNECTION_HOLD = "daytrader.accounts.db.connection.hold";
+	public static final String CONNECTION_LEAKS = "daytrader.accounts.db.connection.leaks";
+	public static final String DB_POOL = "daytrader.accounts.db.pool.connections";
+	public static final String REMOTE_POOL = "daytrader.accounts.remote.pool.connections";
+
+	private static final boolean enabled = !"false".equalsIgnoreCase(System.getenv("DAYTRADER_METRICS"));
+	private static final boolean statementsEnabled = enabled && "true".equalsIgnoreCase(System.getenv("DAYTRADER_STATEMENT_METRICS"));
+
+	private static final ConcurrentMap<String, Outcomes> operations = new ConcurrentHashMap<String, Outcomes>();
+	private static final ConcurrentMap<String, Outcomes> statements = new ConcurrentHashMap<String, Outcomes>();
+	private static final ConcurrentMap<String, Outcomes> portfoliosCalls = new ConcurrentHashMap<String, Outcomes>();
+	private static final Outcomes connectionAcquire = new Outcomes(CONNECTION_ACQUIRE, Duration.ofNanos(100000), new String[0]);
+	private static final Timer connectionHold = Outcomes.timer(CONNECTION_HOLD, Duration.ofNanos(100000), new String[] { "remote", "false" });
+	private static final Timer connectionHoldOverRemoteCall = Outcomes.timer(CONNECTION_HOLD, Duration.ofNanos(100000), new String[] { "remote", "true" });
+	private static final Counter connectionLeaks = Counter.builder(CONNECTION_LEAKS).register(Metrics.globalRegistry);
+
+	// the threads waiting for a connection, whatever the pool implementation
+	private static final AtomicInteger connectionWaiters = new AtomicInteger();
+
+	// the table of an insert, update, delete or select (skipping one letter aliases and DB2's final table)
+	private static final Pattern tablePattern = Pattern.compile("\\b(?:from|into|update|join)\\s+(?!final\\b)([a-z_][a-z0-9_$]+)");
+
+	private AccountsMetrics()
+	{
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public static boolean isStatementsEnabled()
+	{
+		return statementsEnabled;
+	}
+
+	/**
+	 * Records an AccountsService operation that started at startNanos (System.nanoTime())
+	 */
+	public static void operation(String operation, long startNanos, boolean success)
+	{
+		if (!enabled) return;
+		Outcomes outcomes = operations.get(operation);
+		if (outcomes == null) 
+		{
+			outcomes = register(operations, operation, new Outcomes(OPERATION, Duration.ofMillis(1), new String[] { "operation", operation }));
+		}
+		outcomes.record(startNanos, success);
+	}
+
+	/**
+	 * Records a call to the Portfolios that started at startNanos
+	 */
+	public static void portfoliosCall(String call, long startNanos, boolean success)
+	{
+		if (!enabled) return;
+		Outcomes outcomes = portfoliosCalls.get(call);
+		if (outcomes == null) 
+		{
+			outcomes = register(portfoliosCalls, call, new Outcomes(PORTFOLIOS, Duration.ofMillis(1), new String[] { "call", call }));
+		}
+		outcomes.record(startNanos, success);
+	}
+
+	/**
+	 * Returns the timers of the executions of the given sql (or null when they aren't recorded)
+	 */
+	public static Outcomes statement(String sql)
+	{
+		if (!statementsEnabled) return null;
+		Outcomes outcomes = statements.get(sql);
+		if (outcomes == null)
+		{
+			String normalized = sql.trim().toLowerCase(Locale.ROOT);
+			int end = 0;
+			while (end < normalized.length() && Character.isLetter(normalized.charAt(end))) end++;
+			String type = (end > 0) ? normalized.substring(0, end) : "other";
+			if (normalized.startsWith("select * from final table (update")) type = "update";
+			Matcher matcher = tablePattern.matcher(normalized);
+			String table = matcher.find() ? matcher.group(1) : "none";
+			outcomes = register(statements, sql, new Outcomes(STATEMENT, Duration.ofNanos(100000), new String[] { "type", type, "table", table }));
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Gets a connection from the datasource and records how long the caller waited for it
+	 */
+	public static Connection getConnection(DataSource datasource) throws Exception
+	{
+		if (!enabled) return datasource.getConnection();
+		long start = System.nanoTime();
+		boolean success = false;
+		connectionWaiters.incrementAndGet();
+		try
+		{
+			Connection conn = datasource.getConnection();
+			success = true;
+			return conn;
+		}
+		finally
+		{
+			connectionWaiters.decrementAndGet();
+			connectionAcquire.record(start, success);
+		}
+	}
+
+	/**
+	 * Records how long a connection acquired at acquiredNanos was held
+	 */
+	public static void connectionHeld(long acquiredNanos, boolean spannedRemoteCall)
+	{
+		if (!enabled) return;
+		(spannedRemoteCall ? connectionHoldOverRemoteCall : connectionHold).record(System.nanoTime() - acquiredNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public static void connectionLeaked()
+	{
+		if (enabled) connectionLeaks.increment();
+	}
+
+	/**
+	 * Registers the gauges of the datasource's connection pool
+	 */
+	public static void bindDataSource(final DataSource datasource)
+	{
+		if (!enabled || datasource == null) return;
+		gauge(DB_POOL, connectionWaiters, new ToDoubleFunction<AtomicInteger>()
+		{
+			public double applyAsDouble(AtomicInteger waiters)
+			{
+				return waiters.get();
+			}
+		}, "state", "waiting");
+		// the pool implementation is only known at runtime: DBCP's getNumActive() or
+		// HikariCP's getHikariPoolMXBean().getActiveConnections()
+		gaugeProperty(datasource, "active", "getNumActive", "getHikariPoolMXBean.getActiveConnections");
+		gaugeProperty(datasource, "idle", "getNumIdle", "getHikariPoolMXBean.getIdleConnections");
+		gaugeProperty(datasource, "max", "getMaxTotal", "getMaximumPoolSize");
+	}
+
+	/**
+	 * Registers the gauges of a remote client pool
+	 */
+	public static void bindRemoteClientPool(RemoteClientPool pool)
+	{
+		if (!enabled) return;
+		bindRemotePoolGauges(pool, pool.getRoute(), new Function<RemoteClientPool, Map<String, Integer>>()
+		{
+			public Map<String, Integer> apply(RemoteClientPool pool)
+			{
+				return pool.getStats();
+			}
+		});
+	}
+
+	/**
+	 * Registers the gauges of the non-blocking client's pool (route "async")
+	 */
+	public static void bindAsyncRemoteClient(AsyncRemoteClient client)
+	{
+		if (!enabled) return;
+		bindRemotePoolGauges(client, "async", new Function<AsyncRemoteClient, Map<String, Integer>>()
+		{
+			public Map<String, Integer> apply(AsyncRemoteClient client)
+			{
+				return client.getStats();
+			}
+		});
+	}
+
+	private static <T> void bindRemotePoolGauges(T pool, String route, final Function<T, Map<String, Integer>> stats)
+	{
+		for (final String state : new String[] { "leased", "available", "pending", "max" })
+		{
+			gauge(REMOTE_POOL, pool, new ToDoubleFunction<T>()
+			{
+				public double applyAsDouble(T pool)
+				{
+					Integer value = stats.apply(pool).get(state);
+					return (value != null) ? value : Double.NaN;
+				}
+			}, "route", route, "state", state);
+		}
+	}
+
+	/*
+	 * Gauges the first of the getters (or dot-separated chains of getters) the pool offers
+	 */
+	private static void gaugeProperty(DataSource datasource, String state, String... getters)
+	{
+		for (String getter : getters)
+		{
+			final Method[] methods = getterChain(datasource.getClass(), getter.split("\\."));
+			if (methods == null) continue; // not offered by this pool
+			gauge(DB_POOL, datasource, new ToDoubleFunction<DataSource>()
+			{
+				public double applyAsDouble(DataSource datasource)
+				{
+					try
+					{
+						Object value = datasource;
+						for (Method method : methods)
+						{
+							value = method.invoke(value);
+							if (value == null) return Double.NaN; // e.g. the pool isn't started
+						}
+						return ((Number) value).doubleValue();
+					}
+					catch (Exception e)
+					{
+						return Double.NaN;
+					}
+				}
+			}, "state", state);
+			return;
+		}
+	}
+
+	private static Method[] getterChain(Class<?> type, String[] names)
+	{
+		Method[] methods = new Method[names.length];
+		for (int i = 0; i < names.length; i++)
+		{
+			try
+			{
+				methods[i] = type.getMethod(names[i]);
+			}
+			catch (NoSuchMethodException e)
+			{
+				return null;
+			}
+			type = methods[i].getReturnType();
+		}
+		return methods;
+	}
+
+	private static <T> void gauge(String name, T obj, ToDoubleFunction<T> value, String... tags)
+	{
+		Gauge.builder(name, obj, value).tags(tags).register(Metrics.globalRegistry);
+	}
+
+	private static Outcomes register(ConcurrentMap<String, Outcomes> map, String key, Outcomes outcomes)
+	{
+		Outcomes existing = map.putIfAbsent(key, outcomes);
+		return (existing != null) ? existing : outcomes;
+	}
+
+	/**
+	 * The success and error timers of one operation, statement or call
+	 */
+	public static class Outcomes
+	{
+		private final Timer success;
+		private final Timer error;
+
+		Outcomes(String name, Duration minimumExpectedValue, String[] tags)
+		{
+			success = timer(name, minimumExpectedValue, tags, "outcome", "success");
+			error = timer(name, minimumExpectedValue, tags, "outcome", "error");
+		}
+
+		public void record(long startNanos, boolean succeeded)
+		{
+			(succeeded ? success : error).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		}
+
+		private static Timer timer(String name, Duration minimumExpectedValue, String[] tags, String... moreTags)
+		{
+			return Timer.builder(name)
+					.tags(tags)
+					.tags(moreTags)
+					.publishPercentileHistogram()
+					.minimumExpectedValue(minimumExpectedValue)
+					.maximumExpectedValue(Duration.ofSeconds(30))
+					.register(Metrics.globalRegistry);
+		}
+	}
+}
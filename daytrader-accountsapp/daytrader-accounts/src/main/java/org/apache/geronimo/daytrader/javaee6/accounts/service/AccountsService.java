@@ -18,17 +18,56 @@
 package org.apache.geronimo.daytrader.javaee6.accounts.service;
 
 // - Each microservice has its own log
+import org.apache.geronimo.daytrader.javaee6.accounts.utils.EnvSettings;
 import org.apache.geronimo.daytrader.javaee6.accounts.utils.Log;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Date;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -36,6 +75,7 @@ import javax.sql.DataSource;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
 
@@ -47,8 +87,16 @@ import javax.ws.rs.NotAuthorizedException;
 import org.apache.geronimo.daytrader.javaee6.entities.*;
 import org.apache.geronimo.daytrader.javaee6.core.beans.*;
 import org.apache.geronimo.daytrader.javaee6.core.direct.*;
+import org.apache.geronimo.daytrader.javaee6.utils.KeyRange;
 import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
 import org.springframework.stereotype.Service;
 
 
@@ -66,6 +114,88 @@ public class AccountsService
 	// moved to the Portfolios Service.
 	
     private static PortfoliosRemoteCallService portfoliosService = new PortfoliosRemoteCallService();
+
+    //	- Read-through cache of the balances owned by the portfolios
+    //	  (off unless DAYTRADER_BALANCE_CACHE_SIZE is set)
+    private static BalanceCache balanceCache = new BalanceCache(EnvSettings.getInt("DAYTRADER_BALANCE_CACHE_SIZE", 0), 
+    	EnvSettings.getInt("DAYTRADER_BALANCE_CACHE_TTL", 1000), EnvSettings.getInt("DAYTRADER_BALANCE_CACHE_MAX_STALENESS", 10000));
+
+    //	- GET /accounts reads at most DAYTRADER_ACCOUNTS_MAX_USER_IDS users per request
+    private static int maxUserIDs = EnvSettings.getInt("DAYTRADER_ACCOUNTS_MAX_USER_IDS", 1000);
+    //	  with at most DAYTRADER_ACCOUNTS_BULK_PORTFOLIO_CALLS of its portfolio calls in flight, so a
+    //	  bulk read doesn't take every remote call thread from the single-account reads
+    private static int bulkPortfolioCalls = Math.max(1, EnvSettings.getInt("DAYTRADER_ACCOUNTS_BULK_PORTFOLIO_CALLS", 10));
+
+    //	- Login in one round trip where the database can return rows from an update;
+    //	  DAYTRADER_SINGLE_TRIP_LOGIN=false forces the joined fallback
+    private static boolean singleTripLogin = !"false".equalsIgnoreCase(System.getenv("DAYTRADER_SINGLE_TRIP_LOGIN"));
+    private static volatile String loginReturningSQL = null;
+
+    //	- Write-behind login/logout counters, flushed every DAYTRADER_COUNTER_FLUSH_INTERVAL
+    //	  milliseconds in one batched transaction; 0 (the default) writes them through. The
+    //	  counters of at most DAYTRADER_COUNTER_MAX_PENDING users wait for a flush; further
+    //	  logouts are written through
+    private static int counterFlushInterval = EnvSettings.getInt("DAYTRADER_COUNTER_FLUSH_INTERVAL", 0);
+    private static LoginCounters loginCounters = new LoginCounters(EnvSettings.getInt("DAYTRADER_COUNTER_MAX_PENDING", 100000));
+    private static ScheduledExecutorService counterFlusher = null;
+
+    //	- Run statistics kept in memory; resetting the persisted counters is a background job
+    //	  (DAYTRADER_RESET_PERSISTED_COUNTERS=false leaves the counters in the database alone)
+    private static RunStats runStats = new RunStats();
+    private static final ReentrantLock runStatsLock = new ReentrantLock(); // held across the seeding queries
+    private static boolean resetPersistedCounters = !"false".equalsIgnoreCase(System.getenv("DAYTRADER_RESET_PERSISTED_COUNTERS"));
+    private static ExecutorService runStatsExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    	public Thread newThread(Runnable r) {
+    		Thread thread = new Thread(r, "daytrader-run-stats");
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+    });
+
+    //	- Bulk load settings for tradeBuildDB
+    private static int buildBatchSize = EnvSettings.getInt("DAYTRADER_BUILD_BATCH_SIZE", 500);
+    private static int buildCommitInterval = EnvSettings.getInt("DAYTRADER_BUILD_COMMIT_INTERVAL", 5000);
+    private static int buildParallelism = EnvSettings.getInt("DAYTRADER_BUILD_PARALLELISM", 1);
+    //	  each partition holds a connection, so at most a quarter of the pool is used for a build
+    private static int maxBuildParallelism = Math.max(1, EnvSettings.getInt("DAYTRADER_DATABASE_POOL_MAX_SIZE", 100) / 4);
+    private static String importDir = System.getenv("DAYTRADER_IMPORT_DIR"); // see tradeImportDB
+    private static volatile BuildProgress buildProgress = null;
+
+    //	- Overlap the accounts query with the portfolios call when DAYTRADER_CONCURRENT_ACCOUNT_FETCH=true
+    private static boolean concurrentAccountFetch = Boolean.parseBoolean(System.getenv("DAYTRADER_CONCURRENT_ACCOUNT_FETCH"));
+
+    //	- Bounded pool of threads that wait on the portfolios while the request thread uses the database
+    private static ExecutorService remoteCallExecutor = Executors.newFixedThreadPool(
+    	EnvSettings.getInt("DAYTRADER_REMOTE_CALL_THREADS", 50), new ThreadFactory() {
+    		private final AtomicInteger count = new AtomicInteger();
+    		public Thread newThread(Runnable r) {
+    			Thread thread = new Thread(r, "daytrader-remote-call-" + count.incrementAndGet());
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+
+    //	- Bounded pool of threads for the JDBC work of the asynchronous operations; once
+    //	  DAYTRADER_JDBC_QUEUE_SIZE operations are waiting, new ones are rejected instead of queued
+    private static ThreadPoolExecutor jdbcExecutor = newJdbcExecutor("daytrader-jdbc-", EnvSettings.getInt("DAYTRADER_JDBC_THREADS", 50), 
+    	new ArrayBlockingQueue<Runnable>(Math.max(1, EnvSettings.getInt("DAYTRADER_JDBC_QUEUE_SIZE", 1000))));
+
+    //	- Threads that commit (or roll back) and release the connections of the asynchronous operations
+    //	  once their portfolios call completes, off the I/O threads of the HTTP client. Each waiting
+    //	  completion holds a connection, so the pool bounds the queue and a completion is never rejected
+    private static ThreadPoolExecutor jdbcCompletionExecutor = newJdbcExecutor("daytrader-jdbc-completion-", 
+    	Math.max(1, EnvSettings.getInt("DAYTRADER_JDBC_COMPLETION_THREADS", 4)), new LinkedBlockingQueue<Runnable>());
+
+    //	- Bulk registration (see registerBulk) inserts, forwards to the portfolios and commits
+    //	  this many users at a time
+    //	  (a requested batch size is capped at DAYTRADER_BULK_MAX_BATCH_SIZE)
+    private static int bulkBatchSize = EnvSettings.getInt("DAYTRADER_BULK_BATCH_SIZE", 100);
+    private static int maxBulkBatchSize = Math.max(1, EnvSettings.getInt("DAYTRADER_BULK_MAX_BATCH_SIZE", 1000));
+    private static ObjectMapper bulkMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static ObjectReader bulkReader = bulkMapper.readerFor(AccountDataBean.class);
+
+    //	- The export (see exportAccounts) fetches this many rows per round trip
+    private static int exportFetchSize = EnvSettings.getInt("DAYTRADER_EXPORT_FETCH_SIZE", 1000);
 	
 	//	- Each microservice has their own private database (datasource)
     private static String dsName = TradeConfig.ACCOUNTS_DATASOURCE;
@@ -73,6 +203,10 @@ public class AccountsService
     //	-  @Resource annotation is not supported on static fields
     private static DataSource datasource = null;
 
+    //	- Connections held longer than DAYTRADER_CONNECTION_LEAK_THRESHOLD milliseconds are reported
+    //	  as leaks with the stack that acquired them (see InstrumentedDataSource); 0 turns it off
+    private static int connectionLeakThreshold = EnvSettings.getInt("DAYTRADER_CONNECTION_LEAK_THRESHOLD", 30000);
+
     private static InitialContext context;
 
     /**
@@ -90,56 +224,683 @@ public class AccountsService
 	 *
 	 */
     public Boolean tradeBuildDB(int limit, int offset) throws Exception
+    {
+    	return tradeBuildDB(limit, offset, 0, 0, 0);
+    }
+
+	/**
+	 * 
+	 * AccountsService#tradeBuildDB(int,int,int,int)
+	 * 
+	 * Generate sample data as a bulk load. The account and profile inserts reuse two prepared
+	 * statements and are sent to the database batchSize rows at a time; the transaction is 
+	 * committed every commitInterval rows (rounded up to whole batches) instead of holding one
+	 * transaction for the whole load.
+	 * Zero (or less) uses the configured DAYTRADER_BUILD_BATCH_SIZE and DAYTRADER_BUILD_COMMIT_INTERVAL.
+	 *
+	 */
+    public Boolean tradeBuildDB(int limit, int offset, int batchSize, int commitInterval) throws Exception
+    {
+    	return tradeBuildDB(limit, offset, batchSize, commitInterval, 0);
+    }
+
+	/**
+	 * 
+	 * AccountsService#tradeBuildDB(int,int,int,int,int)
+	 * 
+	 * Generate sample data in parallel. The [offset, offset+limit) range is split into one 
+	 * partition per worker and the partitions are populated on a fork-join pool, each with
+	 * its own connection and statements. The progress can be followed with getBuildProgress().
+	 * Zero (or less) parallelism uses the configured DAYTRADER_BUILD_PARALLELISM; it is capped at
+	 * a quarter of DAYTRADER_DATABASE_POOL_MAX_SIZE, so that a build leaves connections for the
+	 * live traffic. When a partition fails, the others stop at their next commit.
+	 *
+	 */
+    public Boolean tradeBuildDB(int limit, int offset, int batchSize, int commitInterval, int parallelism) throws Exception
+    {
+    	long start = System.nanoTime();
+    	boolean success = false;
+    	try
+    	{
+    		Boolean result = buildDB(limit, offset, batchSize, commitInterval, parallelism);
+    		success = true;
+    		return result;
+    	}
+    	finally
+    	{
+    		AccountsMetrics.operation("tradeBuildDB", start, success);
+    	}
+    }
+
+    private Boolean buildDB(int limit, int offset, int batchSize, int commitInterval, int parallelism) throws Exception
     {
     	if (offset == 0) resetTrade(true); // delete any rows from db before re-populating
-        
+
+    	if (batchSize < 1) batchSize = buildBatchSize;
+    	if (commitInterval < 1) commitInterval = buildCommitInterval;
+    	commitInterval = ((Math.max(commitInterval, batchSize) + batchSize - 1) / batchSize) * batchSize; // whole batches
+    	if (parallelism < 1) parallelism = buildParallelism;
+    	parallelism = Math.max(1, Math.min(Math.min(parallelism, maxBuildParallelism), limit));
+
+    	final BuildProgress progress = new BuildProgress();
+    	List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(parallelism);
+    	for (int p = 0; p < parallelism; p++)
+    	{
+    		// spread the remainder over the first partitions
+    		final int from = offset + (int) ((long) limit * p / parallelism);
+    		final int to = offset + (int) ((long) limit * (p + 1) / parallelism);
+    		final BuildProgress.Partition partition = progress.addPartition(from, to);
+    		final int partitionBatchSize = batchSize;
+    		final int partitionCommitInterval = commitInterval;
+    		tasks.add(new Callable<Void>() {
+    			public Void call() throws Exception {
+    				buildPartition(from, to, partitionBatchSize, partitionCommitInterval, partition);
+    				return null;
+    			}
+    		});
+    	}
+    	buildProgress = progress;
+    	runPartitions(tasks, parallelism, progress, "tradeBuildDB");
+        return true;
+
+    } 
+
+	/**
+	 * 
+	 * AccountsService#tradeImportDB(String,String,String,String,int,int,int)
+	 * 
+	 * Populate the accounts from a file of accounts and profiles (see AccountsFile for the formats)
+	 * instead of random users. The file is memory-mapped and split at line breaks into at least
+	 * parallelism chunks, each imported on its own connection in batches of batchSize rows committed
+	 * every commitInterval rows. The new accounts get their ids from the key generator and the
+	 * password "xxx" when the file has none. The users that already exist are skipped. The progress,
+	 * with the throughput in rows per second and the ranges of the file not committed yet, can be
+	 * followed with getBuildProgress().
+	 *
+	 * Without resume ranges the accounts are deleted first, as tradeBuildDB does with offset zero.
+	 * With the resume ranges an interrupted import reported (see BuildProgress#getResumeRanges),
+	 * only the rows that weren't committed are imported.
+	 *
+	 */
+    public Boolean tradeImportDB(String fileName, String format, String layout, String resumeRanges, 
+    		int batchSize, int commitInterval, int parallelism) throws Exception
+    {
+    	long start = System.nanoTime();
+    	boolean success = false;
+    	try
+    	{
+    		Boolean result = importDB(fileName, format, layout, resumeRanges, batchSize, commitInterval, parallelism);
+    		success = true;
+    		return result;
+    	}
+    	finally
+    	{
+    		AccountsMetrics.operation("tradeImportDB", start, success);
+    	}
+    }
+
+    private Boolean importDB(String fileName, String format, String layout, String resumeRanges, 
+    		int batchSize, int commitInterval, int parallelism) throws Exception
+    {
+    	if (batchSize < 1) batchSize = buildBatchSize;
+    	if (commitInterval < 1) commitInterval = buildCommitInterval;
+    	commitInterval = ((Math.max(commitInterval, batchSize) + batchSize - 1) / batchSize) * batchSize; // whole batches
+    	if (parallelism < 1) parallelism = buildParallelism;
+    	parallelism = Math.min(parallelism, maxBuildParallelism);
+
+    	// only the files in DAYTRADER_IMPORT_DIR can be imported
+    	if (importDir == null) throw new IllegalStateException("Set DAYTRADER_IMPORT_DIR to import files");
+    	Path dir = Paths.get(importDir).toAbsolutePath().normalize();
+    	Path path = dir.resolve(fileName).normalize();
+    	if (!path.startsWith(dir)) throw new IllegalArgumentException("The file is not in DAYTRADER_IMPORT_DIR: " + fileName);
+
+    	final AccountsFile file = AccountsFile.open(path.toString(), format, layout);
+    	try
+    	{
+    		List<long[]> chunks;
+    		if (resumeRanges == null)
+    		{
+    			resetTrade(true); // delete any rows from db before re-populating
+    			chunks = file.split(0, parallelism);
+    		}
+    		else
+    		{
+    			chunks = splitResumeRanges(file, resumeRanges, parallelism);
+    		}
+
+    		final BuildProgress progress = new BuildProgress();
+    		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks.size());
+    		for (final long[] chunk : chunks)
+    		{
+    			final BuildProgress.FilePartition partition = progress.addFilePartition(chunk[0], chunk[1]);
+    			final int partitionBatchSize = batchSize;
+    			final int partitionCommitInterval = commitInterval;
+    			tasks.add(new Callable<Void>() {
+    				public Void call() throws Exception {
+    					importPartition(file, partitionBatchSize, partitionCommitInterval, partition);
+    					return null;
+    				}
+    			});
+    		}
+    		buildProgress = progress;
+    		try
+    		{
+    			runPartitions(tasks, Math.max(1, Math.min(parallelism, tasks.size())), progress, "tradeImportDB");
+    		}
+    		finally
+    		{
+    			// the imported users may be of any class; count them in the database
+    			runStats.invalidate();
+    		}
+    	}
+    	finally
+    	{
+    		file.close();
+    	}
+        return true;
+    }
+
+    /*
+     * Split the "from-to,..." ranges an interrupted import left uncommitted between the workers
+     */
+    private static List<long[]> splitResumeRanges(AccountsFile file, String resumeRanges, int parallelism) throws Exception
+    {
+    	List<long[]> ranges = new ArrayList<long[]>();
+    	for (String range : resumeRanges.split(","))
+    	{
+    		if (range.trim().isEmpty()) continue;
+    		String[] offsets = range.split("-");
+    		long from, to;
+    		try
+    		{
+    			from = Long.parseLong(offsets[0].trim());
+    			to = (offsets.length == 2) ? Long.parseLong(offsets[1].trim()) : -1;
+    		}
+    		catch (NumberFormatException e)
+    		{
+    			to = -1;
+    			from = 0;
+    		}
+    		if (offsets.length != 2 || from < 0 || to <= from || to > file.getSize())
+    		{
+    			throw new IllegalArgumentException("Invalid resume range (from-to): " + range);
+    		}
+    		ranges.add(new long[] { from, to });
+    	}
+    	List<long[]> chunks = new ArrayList<long[]>();
+    	for (long[] range : ranges)
+    	{
+    		chunks.addAll(file.split(range[0], range[1], Math.max(1, parallelism / ranges.size())));
+    	}
+    	return chunks;
+    }
+
+    /*
+     * Import the records of a chunk of the file on a connection of its own
+     */
+    private void importPartition(AccountsFile file, int batchSize, int commitInterval, BuildProgress.FilePartition partition) throws Exception
+    {
+        Connection conn = null;
+        PreparedStatement accountStmt = null;
+        PreparedStatement profileStmt = null;
+        try 
+        {
+        	AccountsFile.Records records = file.read(partition.getFrom(), partition.getTo());
+            conn = getConn();
+            accountStmt = getStatement(conn, createAccountSQL);
+            profileStmt = getStatement(conn, createAccountProfileSQL);
+
+            long committedOffset = partition.getFrom();
+            while (committedOffset < partition.getTo())
+            {
+            	partition.checkCancelled();
+            	long[] rows;
+            	try
+            	{
+            		rows = importRows(records, accountStmt, profileStmt, batchSize, commitInterval, null, partition.getTo());
+            		commit(conn);
+            	}
+            	catch (SQLException e)
+            	{
+            		// e.g. a user that already exists; import the uncommitted rows again one at a time
+            		// and skip the rows that fail
+            		rollBack(conn, e);
+            		accountStmt.clearBatch();
+            		profileStmt.clearBatch();
+            		long failedOffset = records.getOffset();
+            		records.seek(committedOffset);
+            		rows = importRows(records, accountStmt, profileStmt, 1, Integer.MAX_VALUE, conn, failedOffset);
+            		commit(conn);
+            	}
+            	if (rows[0] + rows[1] == 0) break; // only blank lines were left
+            	committedOffset = records.getOffset();
+            	partition.commit(rows[0], rows[1], committedOffset);
+            }
+            partition.finish(null);
+        } 
+        catch (Exception e) 
+        {
+        	partition.finish(e);
+   			rollBack(conn, e);
+   			throw e;
+        } 
+        finally 
+        {
+        	if (accountStmt != null) accountStmt.close();
+        	if (profileStmt != null) profileStmt.close();
+            releaseConn(conn);
+        }
+    }
+
+    /*
+     * Add up to maxRows records, before the end offset, to the insert batches and execute them every batchSize
+     * rows; with a connection each row is inserted under a savepoint and skipped if it fails. Returns the rows
+     * inserted and skipped.
+     */
+    private long[] importRows(AccountsFile.Records records, PreparedStatement accountStmt, PreparedStatement profileStmt,
+    		int batchSize, int maxRows, Connection savepointConn, long endOffset) throws Exception
+    {
+    	long inserted = 0;
+    	long skipped = 0;
+    	int batched = 0;
+    	KeyRange accountIDs = new KeyRange(0, -1);
+    	while (inserted + skipped < maxRows && records.getOffset() < endOffset && records.next())
+    	{
+    		String userID = records.get(AccountsFile.USERID);
+    		if (userID == null)
+    		{
+    			throw new Exception("No userid in the record before offset " + records.getOffset());
+    		}
+    		String password = records.get(AccountsFile.PASSWD);
+
+    		// Claim the keys for the rest of the batch at once instead of one at a time
+    		int accountID = accountIDs.nextInt();
+    		if (accountID == KeyRange.DEPLETED)
+    		{
+    			accountIDs = KeySequenceDirect.claimIDs("account", batchSize - batched);
+    			accountID = accountIDs.nextInt();
+    		}
+    		addRegisterBatch(accountStmt, profileStmt, accountID, userID, (password != null) ? password : "xxx",
+    				records.get(AccountsFile.FULLNAME), records.get(AccountsFile.ADDRESS), 
+    				records.get(AccountsFile.EMAIL), records.get(AccountsFile.CREDITCARD));
+    		batched++;
+
+    		if (savepointConn != null)
+    		{
+    			Savepoint savepoint = savepointConn.setSavepoint();
+    			try
+    			{
+    				accountStmt.executeBatch();
+    				profileStmt.executeBatch();
+    				inserted++;
+    			}
+    			catch (SQLException e)
+    			{
+    				savepointConn.rollback(savepoint);
+    				accountStmt.clearBatch();
+    				profileStmt.clearBatch();
+    				Log.debug("AccountsService:importRows() - skipped user " + userID + ": " + e.getMessage());
+    				skipped++;
+    			}
+    			batched = 0;
+    		}
+    		else
+    		{
+    			inserted++;
+    			if (batched == batchSize)
+    			{
+    				accountStmt.executeBatch();
+    				profileStmt.executeBatch();
+    				batched = 0;
+    			}
+    		}
+    	}
+    	if (batched > 0)
+    	{
+    		accountStmt.executeBatch();
+    		profileStmt.executeBatch();
+    	}
+    	return new long[] { inserted, skipped };
+    }
+
+    /*
+     * Run the partitions of a build or an import; in parallel on a fork-join pool unless parallelism is 1
+     */
+    private void runPartitions(List<Callable<Void>> tasks, int parallelism, BuildProgress progress, String operation) throws Exception
+    {
+    	try
+    	{
+    		if (parallelism == 1)
+    		{
+    			for (Callable<Void> task : tasks) task.call();
+    		}
+    		else
+    		{
+    			ForkJoinPool pool = new ForkJoinPool(parallelism);
+    			CompletionService<Void> completions = new ExecutorCompletionService<Void>(pool);
+    			List<Future<Void>> results = new ArrayList<Future<Void>>(tasks.size());
+    			boolean completed = false;
+    			try
+    			{
+    				for (Callable<Void> task : tasks) results.add(completions.submit(task));
+    				for (int i = 0; i < tasks.size(); i++)
+    				{
+    					try
+    					{
+    						completions.take().get();
+    					}
+    					catch (ExecutionException e)
+    					{
+    						if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+    						throw e;
+    					}
+    				}
+    				completed = true;
+    			}
+    			finally
+    			{
+    				// after a failure, the partitions that haven't started are cancelled and the
+    				// running ones stop at their next commit; wait until they have released their
+    				// connections
+    				if (!completed)
+    				{
+    					progress.cancel();
+    					for (Future<Void> result : results) result.cancel(false);
+    				}
+    				pool.shutdown();
+    				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    			}
+    		}
+    	}
+    	finally
+    	{
+    		progress.finish();
+    		Log.debug("AccountsService:" + operation + "() - " + progress.getRowsDone() + " rows in " 
+    				+ progress.getElapsedMillis() + " ms (" + progress.getRowsPerSecond() + " rows/sec) with "
+    				+ tasks.size() + " partition(s)");
+    	}
+    }
+
+    /**
+     * Returns the progress of the last (or current) tradeBuildDB or tradeImportDB
+     */
+    public BuildProgress getBuildProgress()
+    {
+    	return buildProgress;
+    }
+
+    /*
+     * Populate the users [from, to) in batches on a connection of its own
+     */
+    private void buildPartition(int from, int to, int batchSize, int commitInterval, BuildProgress.Partition partition) throws Exception
+    {
         Connection conn = null;
+        PreparedStatement accountStmt = null;
+        PreparedStatement profileStmt = null;
+        KeyRange accountIDs = new KeyRange(0, -1);
+        int pendingRows = 0;
         try 
         {
             conn = getConn();
+            accountStmt = getStatement(conn, createAccountSQL);
+            profileStmt = getStatement(conn, createAccountProfileSQL);
             
         	// Moved this code from the web tier into the microservice where it belongs
-        	for (int i = 0; i < limit; i++) 
+        	for (int i = from; i < to; i++) 
         	{
-        		int accountID = i + offset;
-        		String userID = "uid:" + accountID;
+        		String userID = "uid:" + i;
         	    String fullname = TradeConfig.rndFullName();
         	    String email = TradeConfig.rndEmail(userID);
         	    String address = TradeConfig.rndAddress();
         	    String creditcard = TradeConfig.rndCreditCard();
-                BigDecimal initialBalance = null;
-                if (accountID == 0) 
+
+        	    // Claim the keys for the rest of the batch at once instead of one at a time
+        	    int accountID = accountIDs.nextInt();
+        	    if (accountID == KeyRange.DEPLETED)
+        	    {
+        	    	accountIDs = KeySequenceDirect.claimIDs("account", batchSize - ((i - from) % batchSize));
+        	    	accountID = accountIDs.nextInt();
+        	    }
+
+        	    // The initial balance is kept by the portfolios; it is not persisted in accounts
+                addRegisterBatch(accountStmt, profileStmt, accountID, userID, "xxx", fullname, address, email, creditcard);
+
+                // a commit includes the rows still in the batch
+                int rows = i - from + 1;
+                if (rows % batchSize == 0 || rows % commitInterval == 0 || i == to - 1)
                 {
-                	initialBalance = new BigDecimal(1000000); // uid:0 starts with a cool million.
+                	accountStmt.executeBatch();
+                	profileStmt.executeBatch();
                 }
-                else
+                pendingRows++;
+                if (rows % commitInterval == 0)
                 {
-                    initialBalance = new BigDecimal(TradeConfig.rndInt(100000) + 200000);
+                	partition.checkCancelled();
+                	commit(conn);
+                	partition.addRows(pendingRows);
+                	runStats.tradeUsersRegistered(pendingRows);
+                	pendingRows = 0;
                 }
-                register(conn, userID, "xxx", fullname, address, email, creditcard, initialBalance);
         	} // end-for
             
             commit(conn);
+            partition.addRows(pendingRows);
+            runStats.tradeUsersRegistered(pendingRows);
+            partition.finish(null);
         } 
         catch (Exception e) 
         {
+        	partition.finish(e);
    			rollBack(conn, e);
    			throw e;
         } 
         finally 
         {
+        	if (accountStmt != null) accountStmt.close();
+        	if (profileStmt != null) profileStmt.close();
             releaseConn(conn);
         }
-        return true;
-
-    } 
+    }
     
+   /**
+	*
+	* Writes the accounts joined with their profiles to the output stream, as NDJSON (one AccountDataBean per
+	* line) or as CSV with a header line. The passwords and the credit card numbers are not exported, nor are
+	* the balances, which the portfolios keep, so the NDJSON is not an input for POST /accounts/bulk. The CSV
+	* can be imported by tradeImportDB; a line break inside a field is written as a space, so that each
+	* account is one line.
+	*
+	* The rows are read through a forward-only, read-only cursor, DAYTRADER_EXPORT_FETCH_SIZE rows per round
+	* trip, and each row is written as soon as it is read, so the memory used doesn't grow with the accounts.
+	* Some drivers only stream under conditions of their own (see getExportFetchSize): PostgreSQL honors the
+	* fetch size only with autocommit off, which getConn() guarantees, and MySQL Connector/J reads the whole
+	* result into memory unless the fetch size is Integer.MIN_VALUE (one row at a time, used unless the JDBC
+	* URL sets useCursorFetch=true).
+	* The user id range lets several exports split the accounts between them.
+	*
+	* @param fromUserID the first user id exported, or null
+	* @param toUserID the user id the export stops before, or null
+	* @return the number of accounts exported
+	*/
+    public long exportAccounts(OutputStream out, String format, String fromUserID, String toUserID) throws Exception {
+    	boolean csv = "csv".equalsIgnoreCase(format);
+    	if (!csv && !"ndjson".equalsIgnoreCase(format)) {
+    		throw new IllegalArgumentException("Unsupported export format: " + format);
+    	}
+    	long start = System.nanoTime();
+    	boolean success = false;
+    	long rows = 0;
+    	Connection conn = null;
+    	PreparedStatement stmt = null;
+    	try {
+    		conn = getConn();
+    		// not from the statement cache: the fetch size is the export's own
+    		stmt = conn.prepareStatement(getExportSQL(fromUserID, toUserID), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    		stmt.setFetchSize(getExportFetchSize(conn));
+    		int parameter = 1;
+    		if (fromUserID != null) stmt.setString(parameter++, fromUserID);
+    		if (toUserID != null) stmt.setString(parameter++, toUserID);
+    		ResultSet rs = stmt.executeQuery();
+    		rows = csv ? writeAccountsCSV(rs, out) : writeAccountsNDJSON(rs, out);
+    		rs.close();
+    		commit(conn);
+    		success = true;
+    	} catch (Exception e) {
+    		rollBack(conn, e);
+    		throw e;
+    	} finally {
+    		try {
+    			if (stmt != null) stmt.close();
+    		} finally {
+    			releaseConn(conn);
+    			AccountsMetrics.operation("exportAccounts", start, success);
+    		}
+    	}
+    	Log.debug("AccountsService:exportAccounts() - " + rows + " accounts in " 
+    			+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    	return rows;
+    }
+
+    /*
+     * The fetch size that makes the vendor's driver stream the export instead of reading it all
+     */
+    private static int getExportFetchSize(Connection conn) throws Exception {
+    	DatabaseMetaData dbmd = conn.getMetaData();
+    	String dbProductName = dbmd.getDatabaseProductName();
+    	if (dbProductName.startsWith("MySQL") || dbProductName.startsWith("MariaDB")) {
+    		// Connector/J streams row by row with MIN_VALUE, or in fetches of the given size with a server-side cursor
+    		String url = dbmd.getURL();
+    		boolean cursorFetch = url != null && url.toLowerCase(Locale.ROOT).contains("usecursorfetch=true");
+    		return cursorFetch ? exportFetchSize : Integer.MIN_VALUE;
+    	}
+    	// PostgreSQL uses a cursor only outside autocommit, which getConn() turns off
+    	return exportFetchSize;
+    }
+
+    private static String getExportSQL(String fromUserID, String toUserID) {
+    	StringBuilder sql = new StringBuilder(exportAccountsSQL);
+    	if (fromUserID != null) sql.append(" and ap.userid >= ?");
+    	if (toUserID != null) sql.append(" and ap.userid < ?");
+    	return sql.toString();
+    }
+
+    /*
+     * The account and profile of the current row of the export, with its login counters not yet written
+     */
+    private AccountDataBean getExportedAccount(ResultSet rs) throws Exception {
+    	AccountDataBean accountData = new AccountDataBean(rs.getInt(1), rs.getInt(5), rs.getInt(6), rs.getTimestamp(4),
+    			rs.getTimestamp(3), null, null, rs.getString(2));
+    	accountData.setProfile(new AccountProfileDataBean(accountData.getProfileID(), null, rs.getString(7), rs.getString(8),
+    			rs.getString(9), null));
+    	return loginCounters.merge(accountData);
+    }
+
+    private long writeAccountsNDJSON(ResultSet rs, OutputStream out) throws Exception {
+    	long rows = 0;
+    	JsonGenerator json = bulkMapper.getFactory().createGenerator(out);
+    	json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    	json.setRootValueSeparator(null); // each account ends its own line
+    	try {
+    		while (rs.next()) {
+    			AccountDataBean accountData = getExportedAccount(rs);
+    			AccountProfileDataBean profile = accountData.getProfile();
+    			json.writeStartObject();
+    			json.writeNumberField("accountID", accountData.getAccountID());
+    			json.writeStringField("profileID", accountData.getProfileID());
+    			writeTimeField(json, "creationDate", accountData.getCreationDate());
+    			writeTimeField(json, "lastLogin", accountData.getLastLogin());
+    			json.writeNumberField("loginCount", accountData.getLoginCount());
+    			json.writeNumberField("logoutCount", accountData.getLogoutCount());
+    			json.writeObjectFieldStart("profile");
+    			json.writeStringField("userID", profile.getUserID());
+    			json.writeStringField("fullName", profile.getFullName());
+    			json.writeStringField("address", profile.getAddress());
+    			json.writeStringField("email", profile.getEmail());
+    			json.writeEndObject();
+    			json.writeEndObject();
+    			json.writeRaw('\n');
+    			rows++;
+    		}
+    	} finally {
+    		json.close();
+    	}
+    	return rows;
+    }
+
+    private static void writeTimeField(JsonGenerator json, String name, Date time) throws IOException {
+    	if (time != null) json.writeNumberField(name, time.getTime());
+    	else json.writeNullField(name);
+    }
+
+    private long writeAccountsCSV(ResultSet rs, OutputStream out) throws Exception {
+    	long rows = 0;
+    	Writer csv = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    	csv.write(EXPORT_CSV_HEADER);
+    	while (rs.next()) {
+    		AccountDataBean accountData = getExportedAccount(rs);
+    		AccountProfileDataBean profile = accountData.getProfile();
+    		csv.write(String.valueOf(accountData.getAccountID()));
+    		writeCSVField(csv, accountData.getProfileID());
+    		writeCSVField(csv, (accountData.getCreationDate() != null) ? String.valueOf(accountData.getCreationDate().getTime()) : null);
+    		writeCSVField(csv, (accountData.getLastLogin() != null) ? String.valueOf(accountData.getLastLogin().getTime()) : null);
+    		writeCSVField(csv, String.valueOf(accountData.getLoginCount()));
+    		writeCSVField(csv, String.valueOf(accountData.getLogoutCount()));
+    		writeCSVField(csv, profile.getFullName());
+    		writeCSVField(csv, profile.getAddress());
+    		writeCSVField(csv, profile.getEmail());
+    		csv.write('\n');
+    		rows++;
+    	}
+    	csv.flush();
+    	return rows;
+    }
+
+    /*
+     * Write a separator and the field; a field with a separator or quote is quoted (RFC 4180). The line
+     * breaks are written as spaces: the importer (see AccountsFile) reads one record per line
+     */
+    private static void writeCSVField(Writer csv, String field) throws IOException {
+    	csv.write(',');
+    	if (field == null) return;
+    	boolean quote = false;
+    	boolean lineBreak = false;
+    	for (int i = 0; i < field.length(); i++) {
+    		char c = field.charAt(i);
+    		quote |= (c == ',' || c == '"');
+    		lineBreak |= (c == '\n' || c == '\r');
+    	}
+    	if (lineBreak) field = field.replace('\r', ' ').replace('\n', ' ');
+    	if (!quote) {
+    		csv.write(field);
+    		return;
+    	}
+    	csv.write('"');
+    	csv.write(field.replace("\"", "\"\""));
+    	csv.write('"');
+    }
+
     /**
   	*
   	* @see TradeServices#resetTrade(boolean)
   	*
   	*/
    	public RunStatsDataBean resetTrade(boolean deleteAll) throws Exception 
+   	{
+   		long start = System.nanoTime();
+   		boolean success = false;
+   		try
+   		{
+   			RunStatsDataBean runStatsData = reset(deleteAll);
+   			success = true;
+   			return runStatsData;
+   		}
+   		finally
+   		{
+   			AccountsMetrics.operation("resetTrade", start, success);
+   		}
+   	}
+
+   	private RunStatsDataBean reset(boolean deleteAll) throws Exception 
    	{
   		//		-  Reset usage statistics for account microservices and only the accounts
   		//         microservice. The other microservices will be responsible for resetting
@@ -166,8 +927,11 @@ public class AccountsService
 				stmt.executeUpdate();
 				stmt.close();
 				commit(conn);
+				balanceCache.clear();
+				loginCounters.clear();
+				runStats.clear();
 				// (Re-)initialize the key generator
-				KeySequenceDirect.initialize(getConn());
+				KeySequenceDirect.initialize(getKeyGeneratorConn());
 			}	
 		    catch (Exception e) 
 		    {
@@ -182,67 +946,195 @@ public class AccountsService
 		}
 		else
 		{
-			// calculate usage stats and return
-   			conn = getConn();
-   			PreparedStatement stmt = null;
-   			ResultSet rs = null;
-   			try 
-   			{
-   				// Count and delete random users (with id that start with "ru:%")
-   				stmt = getStatement(conn, "delete from accountprofileejb where userid like 'ru:%'");
-   				stmt.executeUpdate();
-   				stmt.close();
-
-   				// Count and delete random users (with id that start with "ru:%")
-   				// Moved this code into the accounts and portfolios microservices
-   				stmt = getStatement(conn, "delete from accountejb where profile_userid like 'ru:%'");
-   				int newUserCount = stmt.executeUpdate();
-   				runStatsData.setNewUserCount(newUserCount);
-   				stmt.close();
-
-   				// Count of trade users
-   				stmt =	getStatement(conn,
-   					"select count(accountid) as \"tradeUserCount\" from accountejb a where a.profile_userid like 'uid:%'");
-   				rs = stmt.executeQuery();
-   				rs.next();
-   				int tradeUserCount = rs.getInt("tradeUserCount");
-   				runStatsData.setTradeUserCount(tradeUserCount);
-   				stmt.close();
-
-   				// Count of trade users login, logout
-   				stmt = getStatement(conn,
-                    "select sum(loginCount) as \"sumLoginCount\", sum(logoutCount) as \"sumLogoutCount\" from accountejb a where  a.profile_userID like 'uid:%'");
-   				rs = stmt.executeQuery();
-   				rs.next();
-   				int sumLoginCount = rs.getInt("sumLoginCount");
-   				int sumLogoutCount = rs.getInt("sumLogoutCount");
-   				runStatsData.setSumLoginCount(sumLoginCount);
-   				runStatsData.setSumLogoutCount(sumLogoutCount);
-   				stmt.close();
-   				rs.close();
-
-   				// Update logoutcount and loginCount back to zero
-   				stmt = getStatement(conn, 
-   					"update accountejb set logoutCount=0,loginCount=0 where profile_userID like 'uid:%'");
-   				stmt.executeUpdate();
-   				stmt.close();
-
-   				commit(conn);
-   			} 
-   			catch (Exception e) 
-   			{
-   				rollBack(conn, e);
-   				throw e;
-   			} 
-   			finally 
-   			{
-   				releaseConn(conn);
-   			}
+			// The statistics are counted in memory as the users register, login and logout;
+			// the database is only scanned once to seed them
+			if (!runStats.isSeeded()) seedRunStats();
+			final Timestamp snapshotTime;
+			runStatsLock.lock();
+			try {
+				snapshotTime = new Timestamp(System.currentTimeMillis());
+				runStatsData = runStats.snapshotAndReset();
+			} finally {
+				runStatsLock.unlock();
+			}
+
+			// Delete the random users (and zero the persisted counters) without blocking the caller
+			runStatsExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						resetPersistedRunStats(snapshotTime);
+					} catch (Throwable t) {
+						Log.error("AccountsService:resetPersistedRunStats() - failure to reset the persisted run statistics", t);
+					}
+				}
+			});
 
    			return runStatsData;
 		}
    	}
 
+    /*
+     * Count the run statistics in the database (the full scans resetTrade used to run each time)
+     */
+    private void seedRunStats() throws Exception
+    {
+    	// the logins recorded by the write-behind counters are counted in memory but not yet in
+    	// the rows; without the flush, those recorded before the mark would not be counted
+    	if (!runStats.isSeeded()) flushLoginCounters();
+
+    	runStatsLock.lock();
+    	try
+    	{
+    		if (runStats.isSeeded()) return;
+
+    		Connection conn = null;
+    		try
+    		{
+    			conn = getConn();
+    			// register, login and logout keep counting during the scan; seed() keeps their increments
+    			long[] mark = runStats.mark();
+    			PreparedStatement stmt = getStatement(conn,
+    				"select count(accountid) as \"tradeUserCount\" from accountejb a where a.userclass = " + UserClass.TRADE);
+    			ResultSet rs = stmt.executeQuery();
+    			rs.next();
+    			int tradeUserCount = rs.getInt("tradeUserCount");
+    			stmt.close();
+
+    			stmt = getStatement(conn,
+    				"select count(accountid) as \"newUserCount\" from accountejb a where a.userclass = " + UserClass.NEW);
+    			rs = stmt.executeQuery();
+    			rs.next();
+    			int newUserCount = rs.getInt("newUserCount");
+    			stmt.close();
+
+    			stmt = getStatement(conn,
+    				"select sum(loginCount) as \"sumLoginCount\", sum(logoutCount) as \"sumLogoutCount\" from accountejb a where a.userclass = " + UserClass.TRADE);
+    			rs = stmt.executeQuery();
+    			rs.next();
+    			int sumLoginCount = rs.getInt("sumLoginCount");
+    			int sumLogoutCount = rs.getInt("sumLogoutCount");
+    			stmt.close();
+
+    			commit(conn);
+    			runStats.seed(mark, tradeUserCount, newUserCount, sumLoginCount, sumLogoutCount);
+    			Log.debug("AccountsService:seedRunStats() - seeded the run statistics from the database");
+    		}
+    		catch (Exception e)
+    		{
+    			rollBack(conn, e);
+    			throw e;
+    		}
+    		finally
+    		{
+    			releaseConn(conn);
+    		}
+    	}
+    	finally
+    	{
+    		runStatsLock.unlock();
+    	}
+    }
+
+    /*
+     * Delete the random users registered up to the snapshot and set the login/logout counters of
+     * the trade users back to zero.
+     * 
+     * The users registered since the snapshot are kept (they are counted in the new run), unless
+     * DAYTRADER_PURGE_NEW_USERS_SQL replaces the delete (e.g. with a partition truncate, which
+     * runs on its own after the rest is committed). The
+     * counters can't be zeroed as of the snapshot, so the logins and logouts counted in memory
+     * before the update are dropped with it; the in-memory and the persisted counters agree again
+     * once it commits.
+     */
+    private void resetPersistedRunStats(Timestamp snapshotTime) throws Exception
+    {
+    	// write the pending counters first so they are zeroed too
+    	flushLoginCounters();
+
+    	Connection conn = null;
+    	// no seed or snapshot between the mark and the adjustment of the counters
+    	runStatsLock.lock();
+    	try
+    	{
+    		conn = getConn();
+    		long[] mark = runStats.mark();
+    		// the profiles are found through their accounts, so they are deleted first
+    		PreparedStatement stmt = getStatement(conn, 
+    			"delete from accountprofileejb where userid in (select profile_userid from accountejb where userclass = " + UserClass.NEW
+    			+ (purgeNewAccountsUpToSnapshot ? " and creationDate <= ?)" : ")"));
+    		try
+    		{
+    			if (purgeNewAccountsUpToSnapshot) stmt.setTimestamp(1, snapshotTime);
+    			stmt.executeUpdate();
+    		}
+    		finally
+    		{
+    			stmt.close();
+    		}
+
+    		if (purgeNewAccountsUpToSnapshot)
+    		{
+    			stmt = getStatement(conn, purgeNewAccountsSQL);
+    			try
+    			{
+    				stmt.setTimestamp(1, snapshotTime);
+    				stmt.executeUpdate();
+    			}
+    			finally
+    			{
+    				stmt.close();
+    			}
+    		}
+
+    		if (resetPersistedCounters)
+    		{
+    			stmt = getStatement(conn, 
+    				"update accountejb set logoutCount=0,loginCount=0 where userclass = " + UserClass.TRADE);
+    			try
+    			{
+    				stmt.executeUpdate();
+    			}
+    			finally
+    			{
+    				stmt.close();
+    			}
+    		}
+    		commit(conn);
+    		if (resetPersistedCounters) runStats.persistedLoginsReset(mark);
+
+    		if (!purgeNewAccountsUpToSnapshot)
+    		{
+    			// DDL such as a partition truncate commits implicitly (e.g. on Oracle), so it runs
+    			// in a transaction of its own once the rest is committed. If it fails, the accounts
+    			// left without their profiles are purged by the next reset. The profiles of the users
+    			// registered between the two transactions are deleted after the truncate.
+    			Statement purgeStmt = conn.createStatement();
+    			try
+    			{
+    				purgeStmt.executeUpdate(purgeNewAccountsSQL);
+    				purgeStmt.executeUpdate("delete from accountprofileejb where userid like 'ru:%' "
+    					+ "and not exists (select 1 from accountejb a where a.profile_userid = accountprofileejb.userid)");
+    			}
+    			finally
+    			{
+    				purgeStmt.close();
+    			}
+    			commit(conn);
+    			runStats.newUsersPurged(mark);
+    		}
+    	}
+    	catch (Exception e)
+    	{
+    		rollBack(conn, e);
+    		throw e;
+    	}
+    	finally
+    	{
+    		runStatsLock.unlock();
+    		releaseConn(conn);
+    	}
+    }
+
    /**
 	*
 	* @see TradeDBServices#recreateDBTables(Object[],PrintWriter)
@@ -349,7 +1241,7 @@ public class AccountsService
     	}
    		
    		// (Re-)initialize the key generator
-		KeySequenceDirect.initialize(getConn());
+		KeySequenceDirect.initialize(getKeyGeneratorConn());
     	return true;
     }
 	
@@ -359,11 +1251,38 @@ public class AccountsService
 	*
 	*/
     public AccountDataBean getAccountData(String userID) throws Exception {
+    	return getAccountData(userID, -1);
+    }
+
+   /**
+	*
+	* Get the account data with a balance that is at most maxStaleness milliseconds old.
+	* A negative maxStaleness accepts any cached balance that has not expired; zero always
+	* asks the portfolios for the current balance.
+	*
+	*/
+    public AccountDataBean getAccountData(String userID, long maxStaleness) throws Exception {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+        	AccountDataBean accountData = concurrentAccountFetch 
+        		? getAccountDataConcurrently(userID, maxStaleness) : getAccountDataSerially(userID, maxStaleness);
+        	success = true;
+        	return accountData;
+        } finally {
+        	AccountsMetrics.operation("getAccountData", start, success);
+        }
+    }
+
+    /*
+     * The accounts query and then the portfolios call on the request thread
+     */
+    private AccountDataBean getAccountDataSerially(String userID, long maxStaleness) throws Exception {
         AccountDataBean accountData = null;
         Connection conn = null;
         try {
             conn = getConn();
-            accountData = getAccountData(conn, userID);
+            accountData = getAccountData(conn, userID, maxStaleness);
             commit(conn);
 
         } catch (Exception e) {
@@ -374,6 +1293,120 @@ public class AccountsService
         }
         return accountData;
     }
+
+    /*
+     * Concurrent variant of getAccountData(String). The balance is requested from the portfolios
+     * as soon as the userID is known, in parallel with the accounts query, and the connection is
+     * released before waiting on the portfolios. The latency is that of the slower of the two calls.
+     */
+    private AccountDataBean getAccountDataConcurrently(final String userID, final long maxStaleness) throws Exception {
+    	CompletableFuture<AccountDataBean> portfolioFuture = getPortfolioDataAsync(userID, maxStaleness);
+
+        AccountDataBean accountData = null;
+        Connection conn = null;
+        try {
+            conn = getConn();
+            accountData = getAccountDataWithoutBalance(conn, userID);
+            commit(conn);
+        } catch (Exception e) {
+            rollBack(conn, e);
+            portfolioFuture.cancel(false);
+            throw e;
+        } finally {
+            releaseConn(conn);
+        }
+
+        if (accountData == null) {
+        	// no account, so the balance isn't needed
+            portfolioFuture.cancel(false);
+            return null;
+        }
+
+        AccountDataBean portfolioData = join(portfolioFuture);
+        accountData.setBalance(portfolioData.getBalance());
+        accountData.setOpenBalance(portfolioData.getOpenBalance());
+        return accountData;
+    }
+
+   /**
+	*
+	* Get the account data of many users at once. The accounts are read with one query per
+	* chunk of IN_LIST_CHUNK_SIZE users and the connection is released before the balances
+	* are requested from the portfolios, DAYTRADER_ACCOUNTS_BULK_PORTFOLIO_CALLS at a time; if
+	* one of them fails, the calls not completed yet are cancelled. The accounts are returned in the order
+	* requested; users without an account are left out. More than DAYTRADER_ACCOUNTS_MAX_USER_IDS
+	* users are rejected with an IllegalArgumentException.
+	*
+	*/
+    public List<AccountDataBean> getAccountsData(List<String> userIDs, long maxStaleness) throws Exception {
+        if (userIDs.size() > maxUserIDs) {
+        	throw new IllegalArgumentException("At most " + maxUserIDs + " user ids can be read at once");
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+        	List<AccountDataBean> accountsData = getAccountsDataInChunks(userIDs, maxStaleness);
+        	success = true;
+        	return accountsData;
+        } finally {
+        	AccountsMetrics.operation("getAccountsData", start, success);
+        }
+    }
+
+    private List<AccountDataBean> getAccountsDataInChunks(List<String> userIDs, long maxStaleness) throws Exception {
+        Map<String, AccountDataBean> accounts = new HashMap<String, AccountDataBean>();
+        List<String> uniqueIDs = new ArrayList<String>(new LinkedHashSet<String>(userIDs));
+        Connection conn = null;
+        try {
+            conn = getConn();
+            for (int from = 0; from < uniqueIDs.size(); from += IN_LIST_CHUNK_SIZE) {
+            	List<String> chunk = uniqueIDs.subList(from, Math.min(from + IN_LIST_CHUNK_SIZE, uniqueIDs.size()));
+            	getAccountsDataWithoutBalance(conn, chunk, accounts);
+            }
+            commit(conn);
+        } catch (Exception e) {
+            rollBack(conn, e);
+            throw e;
+        } finally {
+            releaseConn(conn);
+        }
+
+        // The portfolio requests of the accounts found, in a sliding window: the next request
+        // starts as the oldest one in flight completes
+        List<String> foundIDs = new ArrayList<String>(accounts.size());
+        for (String userID : uniqueIDs) {
+        	if (accounts.containsKey(userID)) foundIDs.add(userID);
+        }
+        List<CompletableFuture<AccountDataBean>> portfolioFutures = new ArrayList<CompletableFuture<AccountDataBean>>(foundIDs.size());
+        Map<String, AccountDataBean> portfoliosData = new HashMap<String, AccountDataBean>();
+        int completed = 0;
+        try {
+        	while (completed < foundIDs.size()) {
+        		while (portfolioFutures.size() < foundIDs.size() && portfolioFutures.size() - completed < bulkPortfolioCalls) {
+        			portfolioFutures.add(getPortfolioDataAsync(foundIDs.get(portfolioFutures.size()), maxStaleness));
+        		}
+        		portfoliosData.put(foundIDs.get(completed), join(portfolioFutures.get(completed)));
+        		completed++;
+        	}
+        } catch (Exception e) {
+        	// the calls not started yet won't be made
+        	for (int i = completed; i < portfolioFutures.size(); i++) {
+        		portfolioFutures.get(i).cancel(false);
+        	}
+        	throw e;
+        }
+
+        List<AccountDataBean> accountsData = new ArrayList<AccountDataBean>(userIDs.size());
+        for (String userID : userIDs) {
+        	AccountDataBean accountData = accounts.get(userID);
+        	if (accountData == null) continue;
+        	AccountDataBean portfolioData = portfoliosData.get(userID);
+        	accountData.setBalance(portfolioData.getBalance());
+        	accountData.setOpenBalance(portfolioData.getOpenBalance());
+        	accountsData.add(accountData);
+        }
+        return accountsData;
+    }
 	
    /**
 	*
@@ -382,17 +1415,21 @@ public class AccountsService
 	*/
     public AccountProfileDataBean getAccountProfileData(String userID) throws Exception {
         AccountProfileDataBean accountProfileData = null;
+        long start = System.nanoTime();
+        boolean success = false;
         Connection conn = null;
 
         try {
             conn = getConn();
             accountProfileData = getAccountProfileData(conn, userID);
             commit(conn);
+            success = true;
         } catch (Exception e) {
             rollBack(conn, e);
             throw e;
         } finally {
             releaseConn(conn);
+            AccountsMetrics.operation("getAccountProfileData", start, success);
         }
         return accountProfileData;
     }
@@ -404,6 +1441,8 @@ public class AccountsService
 	*/
     public AccountProfileDataBean updateAccountProfile(AccountProfileDataBean profileData) throws Exception {
         AccountProfileDataBean accountProfileData = null;
+        long start = System.nanoTime();
+        boolean success = false;
         Connection conn = null;
 
         try {
@@ -412,11 +1451,13 @@ public class AccountsService
 
             accountProfileData = getAccountProfileData(conn, profileData.getUserID());
             commit(conn);
+            success = true;
         } catch (Exception e) {
             rollBack(conn, e);
             throw e;
         } finally {
             releaseConn(conn);
+            AccountsMetrics.operation("updateAccountProfile", start, success);
         }
         return accountProfileData;
     }
@@ -429,53 +1470,137 @@ public class AccountsService
     public AccountDataBean login(String userID, String password) throws Exception {
     	// notes login only needs to return the userid as that is all that is used by web
         AccountDataBean accountData = null;
+        long start = System.nanoTime();
+        boolean success = false;
         Connection conn = null;
         try {
             conn = getConn();
-            PreparedStatement stmt = getStatement(conn, getAccountProfileSQL);
-            stmt.setString(1, userID);
+            String loginReturningSQL = getLoginReturningSQL(conn);
+            if (counterFlushInterval > 0) {
+            	accountData = loginWriteBehind(conn, userID, password);
+            } else if (loginReturningSQL != null) {
+            	accountData = loginReturning(conn, loginReturningSQL, userID, password);
+            } else {
+            	accountData = loginJoined(conn, userID, password);
+            }
+            commit(conn);
+            runStats.login(userID);
+            success = true;
+        } catch (Exception e) {
+            rollBack(conn, e);
+            throw e;
+        } finally {
+            releaseConn(conn);
+            AccountsMetrics.operation("login", start, success);
+        }
+        return accountData;
+    }
+
+    /*
+     * One round trip: the password is checked in the where clause of an update that
+     * returns the updated account row
+     */
+    private AccountDataBean loginReturning(Connection conn, String sql, String userID, String password) throws Exception {
+        PreparedStatement stmt = getStatement(conn, sql);
+        stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+        stmt.setString(2, userID);
+        stmt.setString(3, password);
 
-            ResultSet rs = stmt.executeQuery();
+        ResultSet rs = stmt.executeQuery();
+        try {
             if (!rs.next()) {
-                throw new NotAuthorizedException("Failure to find profile for user: " + userID);
+                throw new NotAuthorizedException("Failure to login user: " + userID + " (unknown user or incorrect password)");
             }
+            // note: login only needs to return the userid 
+            // as that is all that is used by web so don't
+            // ask the portfolios for the balance
+            return getAccountDataFromResultSet(rs);
+        } finally {
+            rs.close();
+            stmt.close();
+        }
+    }
 
+    /*
+     * Two round trips for vendors that can't return rows from an update: the counters are
+     * updated first (which locks the account row) and the account is then read back joined
+     * with its profile to check the password; a rejected login is rolled back.
+     */
+    private AccountDataBean loginJoined(Connection conn, String userID, String password) throws Exception {
+        PreparedStatement stmt = getStatement(conn, loginSQL);
+        stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+        stmt.setString(2, userID);
+        int rows = stmt.executeUpdate();
+        stmt.close();
+        if (rows == 0) {
+            throw new NotAuthorizedException("Failure to find account for user: " + userID);
+        }
+
+        stmt = getStatement(conn, getAccountWithPasswordSQL);
+        stmt.setString(1, userID);
+        ResultSet rs = stmt.executeQuery();
+        try {
+            if (!rs.next()) {
+                throw new NotAuthorizedException("Failure to find profile for user: " + userID);
+            }
             String pw = rs.getString("passwd");
-            stmt.close();
             if ((pw == null) || (pw.equals(password) == false)) {
                 throw new NotAuthorizedException("Incorrect password: " +  password + " for user: " + userID);
             }
-
-            stmt = getStatement(conn, loginSQL);
-            stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-            stmt.setString(2, userID);
-
-            stmt.executeUpdate();
-            // ?assert rows==1?
+            return getAccountDataFromResultSet(rs);
+        } finally {
+            rs.close();
             stmt.close();
+        }
+    }
 
-            stmt = getStatement(conn, getAccountForUserSQL);
-            stmt.setString(1, userID);
-            rs = stmt.executeQuery();
-
+    /*
+     * Write-behind: only read the account joined with its profile; the login is counted in
+     * memory and written by the next flush
+     */
+    private AccountDataBean loginWriteBehind(Connection conn, String userID, String password) throws Exception {
+        PreparedStatement stmt = getStatement(conn, getAccountWithPasswordSQL);
+        stmt.setString(1, userID);
+        ResultSet rs = stmt.executeQuery();
+        try {
             if (!rs.next()) {
-                throw new NotAuthorizedException("Failure to find account for user: " + userID);
+                throw new NotAuthorizedException("Failure to find profile for user: " + userID);
             }
-            else
-            	// note: login only needs to return the userid 
-            	// as that is all that is used by web so don't
-            	// ask the portfolios for the balance
-            	accountData = getAccountDataFromResultSet(rs);
-
-            stmt.close();
-            commit(conn);
-        } catch (Exception e) {
-            rollBack(conn, e);
-            throw e;
+            String pw = rs.getString("passwd");
+            if ((pw == null) || (pw.equals(password) == false)) {
+                throw new NotAuthorizedException("Incorrect password: " +  password + " for user: " + userID);
+            }
+            loginCounters.recordLogin(userID, System.currentTimeMillis());
+            return getAccountDataFromResultSet(rs);
         } finally {
-            releaseConn(conn);
+            rs.close();
+            stmt.close();
+        }
+    }
+
+    /*
+     * Returns the vendor's single round trip login statement or null to use the joined fallback
+     */
+    private String getLoginReturningSQL(Connection conn) throws Exception {
+        String sql = loginReturningSQL;
+        if (sql == null) {
+            String dbProductName = conn.getMetaData().getDatabaseProductName();
+            if (!singleTripLogin) {
+            	sql = "";
+            } else if (dbProductName.startsWith("PostgreSQL")) {
+            	sql = loginReturningPostgreSQL;
+            } else if (dbProductName.startsWith("Microsoft SQL Server")) {
+            	sql = loginReturningSQLServerSQL;
+            } else if (dbProductName.startsWith("DB2/")) {
+            	sql = loginReturningDB2SQL;
+            } else {
+            	sql = "";
+            }
+            Log.debug("AccountsService:getLoginReturningSQL() - " + dbProductName + " login uses "
+            	+ (sql.isEmpty() ? "the joined fallback" : "a single round trip"));
+            loginReturningSQL = sql;
         }
-        return accountData;
+        return sql.isEmpty() ? null : sql;
     }
 
    /**
@@ -486,6 +1611,13 @@ public class AccountsService
     public boolean logout(String userID) throws Exception 
     { 
     	boolean result = false;
+        long start = System.nanoTime();
+
+        if (counterFlushInterval > 0 && loginCounters.recordLogout(userID)) {
+        	runStats.logout(userID);
+        	AccountsMetrics.operation("logout", start, true);
+        	return true;
+        }
         
         Connection conn = null;       
         try {
@@ -495,16 +1627,71 @@ public class AccountsService
             stmt.executeUpdate();
             stmt.close();
             commit(conn);
+            runStats.logout(userID);
             result = true;
         } catch (Exception e) {
             rollBack(conn, e);
             throw e;
         } finally {
             releaseConn(conn);
+            AccountsMetrics.operation("logout", start, result);
         }
         return result;
     }
 
+    /**
+     * Writes the pending login/logout counters in one batched transaction; the counters are
+     * kept for the next flush if the write fails
+     */
+    public int flushLoginCounters() throws Exception {
+        List<LoginCounters.Delta> deltas = loginCounters.drain();
+        if (deltas.isEmpty()) return 0;
+
+        long start = System.nanoTime();
+        boolean success = false;
+        Connection conn = null;
+        try {
+            conn = getConn();
+            PreparedStatement loginStmt = getStatement(conn, flushLoginCountsSQL);
+            PreparedStatement logoutStmt = getStatement(conn, flushLogoutCountsSQL);
+            for (LoginCounters.Delta delta : deltas) {
+            	if (delta.getLogins() > 0) {
+            		loginStmt.setTimestamp(1, new Timestamp(delta.getLastLogin()));
+            		loginStmt.setInt(2, delta.getLogins());
+            		loginStmt.setInt(3, delta.getLogouts());
+            		loginStmt.setString(4, delta.getUserID());
+            		loginStmt.addBatch();
+            	} else {
+            		logoutStmt.setInt(1, delta.getLogouts());
+            		logoutStmt.setString(2, delta.getUserID());
+            		logoutStmt.addBatch();
+            	}
+            }
+            loginStmt.executeBatch();
+            logoutStmt.executeBatch();
+            loginStmt.close();
+            logoutStmt.close();
+            commit(conn);
+            loginCounters.flushed(deltas);
+            success = true;
+        } catch (Exception e) {
+            loginCounters.restore(deltas);
+            rollBack(conn, e);
+            throw e;
+        } finally {
+            releaseConn(conn);
+            AccountsMetrics.operation("flushLoginCounters", start, success);
+        }
+        return deltas.size();
+    }
+
+    /**
+     * Returns the pending users, recorded logins/logouts and flushes of the write-behind counters
+     */
+    public Map<String, Long> getLoginCounterStats() {
+    	return loginCounters.getStats();
+    }
+
    /**
 	*
 	* @see TradeServices#register(String,String,String,String,String,String,BigDecimal)
@@ -514,6 +1701,8 @@ public class AccountsService
     		String address, String email, String creditCard, BigDecimal openBalance) throws Exception 
     {  
         AccountDataBean accountData = null;
+        long start = System.nanoTime();
+        boolean success = false;
         Connection conn = null;
         try 
         {
@@ -526,6 +1715,9 @@ public class AccountsService
             accountData = portfoliosService.register(accountData); 
             
             commit(conn);
+            balanceCache.invalidate(userID);
+            runStats.userRegistered(userID);
+            success = true;
 
         } 
         catch (Exception e) 
@@ -536,10 +1728,456 @@ public class AccountsService
         finally 
         {
             releaseConn(conn);
+            AccountsMetrics.operation("register", start, success);
         }
         return accountData;
     }
  	
+   /**
+	*
+	* Registers the users read from a stream of AccountDataBeans (NDJSON: one JSON object per line) and
+	* writes one result per user to the output stream, e.g. {"record":1,"userID":"ru:1","accountID":7,"status":201}.
+	*
+	* The users are inserted in a JDBC batch, forwarded to the portfolios together and committed a batch
+	* at a time, so the memory used doesn't grow with the stream. As in register, a user is committed only
+	* once the portfolios registered it. A record that can't be parsed ends the stream (status 400); the
+	* batches before it stay registered.
+	*
+	* @return the number of users registered
+	*/
+    public long registerBulk(InputStream in, OutputStream out, int batchSize) throws Exception {
+    	if (batchSize < 1) batchSize = bulkBatchSize;
+    	batchSize = Math.min(batchSize, maxBulkBatchSize); // the batch is held in memory and in one transaction
+    	long registered = 0;
+    	int recordCount = 0;
+    	JsonGenerator results = bulkMapper.getFactory().createGenerator(out);
+    	results.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    	results.setRootValueSeparator(null); // each result ends its own line
+    	MappingIterator<AccountDataBean> records = bulkReader.readValues(in);
+    	List<BulkRecord> batch = new ArrayList<BulkRecord>(batchSize);
+    	try {
+    		boolean more = true;
+    		while (more) {
+    			batch.clear();
+    			BulkRecord unreadable = null;
+    			try {
+    				while (batch.size() < batchSize && (more = records.hasNextValue())) {
+    					batch.add(new BulkRecord(recordCount + 1, records.nextValue()));
+    					recordCount++;
+    				}
+    			} catch (JsonProcessingException e) {
+    				// the parser can't resynchronize after a malformed record
+    				unreadable = new BulkRecord(recordCount + 1, null).fail(400, e.getOriginalMessage());
+    				more = false;
+    			}
+    			registered += registerBatch(batch);
+    			for (BulkRecord record : batch) record.write(results);
+    			if (unreadable != null) unreadable.write(results);
+    			results.flush();
+    		}
+    	} finally {
+    		records.close();
+    		results.close();
+    	}
+    	Log.debug("AccountsService:registerBulk() - registered " + registered + " of " + recordCount + " users");
+    	return registered;
+    }
+
+    /*
+     * Register a batch of users in one transaction and set the status of each record
+     */
+    private int registerBatch(List<BulkRecord> batch) throws Exception {
+    	List<BulkRecord> inserted = new ArrayList<BulkRecord>(batch.size());
+    	for (BulkRecord record : batch) {
+    		if (record.isValid()) inserted.add(record);
+    		else record.fail(400, "profileID and profile are required");
+    	}
+    	if (inserted.isEmpty()) return 0;
+
+    	long start = System.nanoTime();
+    	boolean success = false;
+    	int registered = 0;
+    	Connection conn = null;
+    	try {
+    		conn = getConn();
+    		try {
+    			insertBatch(conn, inserted);
+    		} catch (SQLException e) {
+    			// e.g. an existing user; insert one at a time to find the records that fail
+    			rollBack(conn, e);
+    			inserted = insertEach(conn, inserted);
+    		}
+
+    		// The portfolios calls of the batch are in flight together; wait once for all of them
+    		List<CompletableFuture<AccountDataBean>> calls = new ArrayList<CompletableFuture<AccountDataBean>>(inserted.size());
+    		for (BulkRecord record : inserted) {
+    			calls.add(portfoliosService.registerAsync(record.accountData));
+    		}
+    		List<BulkRecord> rejected = new ArrayList<BulkRecord>();
+    		for (int i = 0; i < calls.size(); i++) {
+    			try {
+    				calls.get(i).get();
+    			} catch (ExecutionException e) {
+    				inserted.get(i).fail(500, String.valueOf(e.getCause()));
+    				rejected.add(inserted.get(i));
+    			} catch (CancellationException e) {
+    				// the others are registered by the portfolios; fail only this one
+    				inserted.get(i).fail(500, e.toString());
+    				rejected.add(inserted.get(i));
+    			}
+    		}
+    		if (!rejected.isEmpty()) deleteAccounts(conn, rejected);
+
+    		commit(conn);
+    		for (BulkRecord record : inserted) {
+    			if (record.status != 0) continue;
+    			record.status = 201;
+    			balanceCache.invalidate(record.accountData.getProfileID());
+    			runStats.userRegistered(record.accountData.getProfileID());
+    			registered++;
+    		}
+    		success = true;
+    	} catch (Exception e) {
+    		Log.error("AccountsService:registerBatch() - failure to register a batch of " + inserted.size() + " users", e);
+    		rollBack(conn, e);
+    		for (BulkRecord record : inserted) {
+    			if (record.status == 0) record.fail(500, e.toString());
+    		}
+    	} finally {
+    		releaseConn(conn);
+    		AccountsMetrics.operation("registerBulk", start, success);
+    	}
+    	return registered;
+    }
+
+    /*
+     * Insert the accounts and profiles of the records in one JDBC batch each
+     */
+    private void insertBatch(Connection conn, List<BulkRecord> records) throws Exception {
+    	PreparedStatement accountStmt = getStatement(conn, createAccountSQL);
+    	PreparedStatement profileStmt = getStatement(conn, createAccountProfileSQL);
+    	try {
+    		KeyRange accountIDs = new KeyRange(0, -1);
+    		for (int i = 0; i < records.size(); i++) {
+    			int accountID = accountIDs.nextInt();
+    			if (accountID == KeyRange.DEPLETED) {
+    				accountIDs = KeySequenceDirect.claimIDs("account", records.size() - i);
+    				accountID = accountIDs.nextInt();
+    			}
+    			AccountDataBean accountData = records.get(i).accountData;
+    			AccountProfileDataBean profile = accountData.getProfile();
+    			addRegisterBatch(accountStmt, profileStmt, accountID, accountData.getProfileID(), profile.getPassword(),
+    					profile.getFullName(), profile.getAddress(), profile.getEmail(), profile.getCreditCard());
+    			records.get(i).accountData = newAccountData(accountID, accountData);
+    		}
+    		accountStmt.executeBatch();
+    		profileStmt.executeBatch();
+    	} finally {
+    		accountStmt.close();
+    		profileStmt.close();
+    	}
+    }
+
+    /*
+     * Insert the records one at a time, each under a savepoint; returns the records inserted
+     */
+    private List<BulkRecord> insertEach(Connection conn, List<BulkRecord> records) throws Exception {
+    	List<BulkRecord> inserted = new ArrayList<BulkRecord>(records.size());
+    	for (BulkRecord record : records) {
+    		AccountDataBean accountData = record.accountData;
+    		AccountProfileDataBean profile = accountData.getProfile();
+    		Savepoint savepoint = conn.setSavepoint();
+    		try {
+    			record.accountData = register(conn, accountData.getProfileID(), profile.getPassword(), profile.getFullName(),
+    					profile.getAddress(), profile.getEmail(), profile.getCreditCard(), accountData.getOpenBalance());
+    			inserted.add(record);
+    		} catch (SQLException e) {
+    			conn.rollback(savepoint);
+    			record.fail(500, e.getMessage());
+    		}
+    	}
+    	return inserted;
+    }
+
+    /*
+     * Remove the uncommitted accounts of the records the portfolios didn't register
+     */
+    private void deleteAccounts(Connection conn, List<BulkRecord> records) throws Exception {
+    	PreparedStatement accountStmt = getStatement(conn, deleteAccountSQL);
+    	PreparedStatement profileStmt = getStatement(conn, deleteAccountProfileSQL);
+    	try {
+    		for (BulkRecord record : records) {
+    			accountStmt.setString(1, record.accountData.getProfileID());
+    			accountStmt.addBatch();
+    			profileStmt.setString(1, record.accountData.getProfileID());
+    			profileStmt.addBatch();
+    		}
+    		accountStmt.executeBatch();
+    		profileStmt.executeBatch();
+    	} finally {
+    		accountStmt.close();
+    		profileStmt.close();
+    	}
+    }
+
+    /*
+     * The account data of a user inserted by insertBatch, as register(Connection, ...) returns it
+     */
+    private static AccountDataBean newAccountData(int accountID, AccountDataBean requested) {
+    	Timestamp creationDate = new Timestamp(System.currentTimeMillis());
+    	AccountDataBean accountData = new AccountDataBean(accountID, 0, 0, creationDate, creationDate,
+    			requested.getOpenBalance(), requested.getOpenBalance(), requested.getProfileID());
+    	accountData.setProfile(requested.getProfile());
+    	return accountData;
+    }
+
+    /*
+     * A record of a bulk registration and its result
+     */
+    private static class BulkRecord {
+    	final int record;
+    	AccountDataBean accountData;
+    	int status = 0; // not yet known
+    	String error = null;
+
+    	BulkRecord(int record, AccountDataBean accountData) {
+    		this.record = record;
+    		this.accountData = accountData;
+    	}
+
+    	boolean isValid() {
+    		return accountData != null && accountData.getProfileID() != null && accountData.getProfile() != null;
+    	}
+
+    	BulkRecord fail(int status, String error) {
+    		this.status = status;
+    		this.error = error;
+    		return this;
+    	}
+
+    	void write(JsonGenerator results) throws IOException {
+    		results.writeStartObject();
+    		results.writeNumberField("record", record);
+    		if (accountData != null && accountData.getProfileID() != null) {
+    			results.writeStringField("userID", accountData.getProfileID());
+    		}
+    		if (status == 201 && accountData.getAccountID() != null) {
+    			results.writeNumberField("accountID", accountData.getAccountID());
+    		}
+    		results.writeNumberField("status", status);
+    		if (error != null) results.writeStringField("error", error);
+    		results.writeEndObject();
+    		results.writeRaw('\n');
+    	}
+    }
+
+	// Asynchronous operations: the request thread only starts them. The JDBC work runs on the
+	// bounded JDBC executor and the portfolios are called without blocking a thread, so the
+	// requests waiting on the portfolios hold no thread at all. When the JDBC executor is full
+	// the returned future fails with a RejectedExecutionException.
+
+   /**
+	*
+	* Asynchronous getAccountData(String, long): the balance is requested from the portfolios
+	* while the accounts query runs, and the connection is released before the balance arrives
+	*
+	*/
+    public CompletableFuture<AccountDataBean> getAccountDataAsync(final String userID, long maxStaleness) {
+    	long start = System.nanoTime();
+    	final CompletableFuture<AccountDataBean> portfolioFuture = getPortfolioDataNonBlocking(userID, maxStaleness);
+    	CompletableFuture<AccountDataBean> accountFuture = supplyJdbc(new Callable<AccountDataBean>() {
+    		public AccountDataBean call() throws Exception {
+    			AccountDataBean accountData = null;
+    			Connection conn = null;
+    			try {
+    				conn = getConn();
+    				accountData = getAccountDataWithoutBalance(conn, userID);
+    				commit(conn);
+    			} catch (Exception e) {
+    				rollBack(conn, e);
+    				throw e;
+    			} finally {
+    				releaseConn(conn);
+    			}
+    			return accountData;
+    		}
+    	});
+    	return timed("getAccountData", start, accountFuture.thenCompose(
+    		new Function<AccountDataBean, CompletionStage<AccountDataBean>>() {
+    			public CompletionStage<AccountDataBean> apply(final AccountDataBean accountData) {
+    				if (accountData == null) {
+    					// no account, so the balance isn't needed
+    					return CompletableFuture.completedFuture(null);
+    				}
+    				return portfolioFuture.thenApply(new Function<AccountDataBean, AccountDataBean>() {
+    					public AccountDataBean apply(AccountDataBean portfolioData) {
+    						accountData.setBalance(portfolioData.getBalance());
+    						accountData.setOpenBalance(portfolioData.getOpenBalance());
+    						return accountData;
+    					}
+    				});
+    			}
+    		}));
+    }
+
+   /**
+	*
+	* Asynchronous login(String, String); the login only uses the database
+	*
+	*/
+    public CompletableFuture<AccountDataBean> loginAsync(final String userID, final String password) {
+    	return supplyJdbc(new Callable<AccountDataBean>() {
+    		public AccountDataBean call() throws Exception {
+    			return login(userID, password);
+    		}
+    	});
+    }
+
+   /**
+	*
+	* Asynchronous register(String,String,String,String,String,String,BigDecimal). As in register,
+	* the account is committed only once the portfolios registered the user; the connection
+	* stays checked out meanwhile, but no thread waits on the portfolios.
+	*
+	*/
+    public CompletableFuture<AccountDataBean> registerAsync(final String userID, final String password, final String fullname, 
+    		final String address, final String email, final String creditCard, final BigDecimal openBalance) {
+    	final long start = System.nanoTime();
+    	final CompletableFuture<AccountDataBean> result = new CompletableFuture<AccountDataBean>();
+    	try {
+    		jdbcExecutor.execute(new Runnable() {
+    			public void run() {
+    				Connection conn = null;
+    				try {
+    					conn = getConn();
+    					AccountDataBean accountData = register(conn, userID, password, fullname, address, email, creditCard, openBalance);
+    					final Connection registerConn = conn;
+    					conn = null;
+    					portfoliosService.registerAsync(accountData).whenComplete(new BiConsumer<AccountDataBean, Throwable>() {
+    						public void accept(final AccountDataBean registeredData, final Throwable failure) {
+    							// commit on a JDBC thread rather than the I/O thread that completed the call
+    							executeJdbcCompletion(new Runnable() {
+    								public void run() {
+    									completeRegister(registerConn, userID, registeredData, failure, start, result);
+    								}
+    							});
+    						}
+    					});
+    				} catch (Throwable t) {
+    					completeRegister(conn, userID, null, t, start, result);
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		AccountsMetrics.operation("register", start, false);
+    		result.completeExceptionally(e);
+    	}
+    	return result;
+    }
+
+    /*
+     * Commit the registration, or roll it back if it failed, and release its connection
+     */
+    private void completeRegister(Connection conn, String userID, AccountDataBean accountData, Throwable failure,
+    		long start, CompletableFuture<AccountDataBean> result) {
+    	boolean success = false;
+    	try {
+    		if (failure == null) {
+    			commit(conn);
+    			balanceCache.invalidate(userID);
+    			runStats.userRegistered(userID);
+    			success = true;
+    		}
+    	} catch (Throwable t) {
+    		failure = t;
+    	} finally {
+    		try {
+    			if (!success && conn != null) conn.rollback();
+    			releaseConn(conn);
+    		} catch (Throwable t) {
+    			Log.error("AccountsService:completeRegister() - failure to release the connection of user: " + userID, t);
+    		}
+    		AccountsMetrics.operation("register", start, success);
+    	}
+    	if (success) {
+    		result.complete(accountData);
+    	} else {
+    		result.completeExceptionally((failure instanceof CompletionException && failure.getCause() != null) ? failure.getCause() : failure);
+    	}
+    }
+
+    /*
+     * Get the balance from the cache, or else request it from the portfolios without blocking
+     */
+    private CompletableFuture<AccountDataBean> getPortfolioDataNonBlocking(final String userID, long maxStaleness) {
+    	AccountDataBean cachedData = balanceCache.get(userID, maxStaleness);
+    	if (cachedData != null) {
+    		return CompletableFuture.completedFuture(cachedData);
+    	}
+    	final long version = balanceCache.getVersion(userID);
+    	return portfoliosService.getAccountDataAsync(userID).thenApply(new Function<AccountDataBean, AccountDataBean>() {
+    		public AccountDataBean apply(AccountDataBean portfolioData) {
+    			balanceCache.put(userID, portfolioData, version);
+    			return portfolioData;
+    		}
+    	});
+    }
+
+    /*
+     * Run the JDBC work on the JDBC executor
+     */
+    private static <T> CompletableFuture<T> supplyJdbc(final Callable<T> work) {
+    	final CompletableFuture<T> result = new CompletableFuture<T>();
+    	try {
+    		jdbcExecutor.execute(new Runnable() {
+    			public void run() {
+    				try {
+    					result.complete(work.call());
+    				} catch (Throwable t) {
+    					result.completeExceptionally(t);
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		result.completeExceptionally(e);
+    	}
+    	return result;
+    }
+
+    /*
+     * Run work that must not be rejected (e.g. it releases a connection) on the completion executor;
+     * only once it has been shut down, on the calling thread
+     */
+    private static void executeJdbcCompletion(Runnable work) {
+    	try {
+    		jdbcCompletionExecutor.execute(work);
+    	} catch (RejectedExecutionException e) {
+    		work.run();
+    	}
+    }
+
+    private static <T> CompletableFuture<T> timed(final String operation, final long start, CompletableFuture<T> future) {
+    	return future.whenComplete(new BiConsumer<T, Throwable>() {
+    		public void accept(T value, Throwable failure) {
+    			AccountsMetrics.operation(operation, start, failure == null);
+    		}
+    	});
+    }
+
+    private static ThreadPoolExecutor newJdbcExecutor(final String name, int threads, BlockingQueue<Runnable> queue) {
+    	ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+    		queue, new ThreadFactory() {
+    			private final AtomicInteger count = new AtomicInteger();
+    			public Thread newThread(Runnable r) {
+    				Thread thread = new Thread(r, name + count.incrementAndGet());
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	executor.allowCoreThreadTimeOut(true);
+    	return executor;
+    }
+
 	// Private helper functions	
     
     /**
@@ -552,9 +2190,7 @@ public class AccountsService
 
     	 // Created this method simply to clean up the public register()
     	 
-         PreparedStatement stmt = getStatement(conn, createAccountSQL);
-         
-         Integer accountID = KeySequenceDirect.getNextID("account");
+         int accountID = KeySequenceDirect.getNextIntID("account");
          
          BigDecimal balance = openBalance;
          Timestamp creationDate = new Timestamp(System.currentTimeMillis());
@@ -562,27 +2198,37 @@ public class AccountsService
          int loginCount = 0;
          int logoutCount = 0;
 
-         stmt.setInt(1, accountID.intValue());
-         stmt.setTimestamp(2, creationDate);
+         // the statements are closed (returned to the cache) even if the insert fails, e.g. on a
+         // duplicate userID, which the bulk registration recovers from and carries on
+         PreparedStatement stmt = getStatement(conn, createAccountSQL);
+         try {
+        	 stmt.setInt(1, accountID);
+        	 stmt.setTimestamp(2, creationDate);
 // Don't persist these fields in the accounts microservice; persist them in portfolios
 //             stmt.setBigDecimal(3, openBalance);
 //             stmt.setBigDecimal(4, balance);
-         stmt.setTimestamp(3, lastLogin);
-         stmt.setInt(4, loginCount);
-         stmt.setInt(5, logoutCount);
-         stmt.setString(6, userID);
-         stmt.executeUpdate();
-         stmt.close();
+        	 stmt.setTimestamp(3, lastLogin);
+        	 stmt.setInt(4, loginCount);
+        	 stmt.setInt(5, logoutCount);
+        	 stmt.setString(6, userID);
+        	 stmt.setInt(7, UserClass.of(userID));
+        	 stmt.executeUpdate();
+         } finally {
+        	 stmt.close();
+         }
 
          stmt = getStatement(conn, createAccountProfileSQL);
-         stmt.setString(1, userID);
-         stmt.setString(2, password);
-         stmt.setString(3, fullname);
-         stmt.setString(4, address);
-         stmt.setString(5, email);
-         stmt.setString(6, creditCard);
-         stmt.executeUpdate();
-         stmt.close();
+         try {
+        	 stmt.setString(1, userID);
+        	 stmt.setString(2, password);
+        	 stmt.setString(3, fullname);
+        	 stmt.setString(4, address);
+        	 stmt.setString(5, email);
+        	 stmt.setString(6, creditCard);
+        	 stmt.executeUpdate();
+         } finally {
+        	 stmt.close();
+         }
          
          AccountDataBean accountData = new AccountDataBean(accountID, loginCount, logoutCount, lastLogin, creationDate, balance, openBalance, userID);          
          AccountProfileDataBean profileData = new AccountProfileDataBean(userID, password, fullname, address, email, creditCard);         
@@ -591,7 +2237,66 @@ public class AccountsService
          return accountData;   
      }
     
-    private AccountDataBean getAccountData(Connection conn, String userID) throws Exception {
+    /*
+     * Add the account and profile of a new user to the insert batches of the given statements 
+     */
+    private void addRegisterBatch(PreparedStatement accountStmt, PreparedStatement profileStmt, int accountID, String userID, 
+    		String password, String fullname, String address, String email, String creditCard) throws Exception {
+
+        Timestamp creationDate = new Timestamp(System.currentTimeMillis());
+
+        accountStmt.setInt(1, accountID);
+        accountStmt.setTimestamp(2, creationDate);
+        accountStmt.setTimestamp(3, creationDate);
+        accountStmt.setInt(4, 0);
+        accountStmt.setInt(5, 0);
+        accountStmt.setString(6, userID);
+        accountStmt.setInt(7, UserClass.of(userID));
+        accountStmt.addBatch();
+
+        profileStmt.setString(1, userID);
+        profileStmt.setString(2, password);
+        profileStmt.setString(3, fullname);
+        profileStmt.setString(4, address);
+        profileStmt.setString(5, email);
+        profileStmt.setString(6, creditCard);
+        profileStmt.addBatch();
+    }
+
+    private AccountDataBean getAccountData(Connection conn, String userID, long maxStaleness) throws Exception {
+        AccountDataBean accountData = getAccountDataWithoutBalance(conn, userID);
+        if (accountData != null)
+        {
+        	// ask the portfolios for the most recent balance so web app can display it
+        	// changed this code to get the balance and open balance from the portfolio
+        	AccountDataBean portfolioData = getPortfolioData(accountData.getProfileID(), maxStaleness);
+        	accountData.setBalance(portfolioData.getBalance());
+        	accountData.setOpenBalance(portfolioData.getOpenBalance());
+        }
+        return accountData;
+    }
+
+    /*
+     * Read the balance through the cache; only ask the portfolios if the cached balance is too stale
+     */
+    private AccountDataBean getPortfolioData(String userID, long maxStaleness) throws Exception {
+    	AccountDataBean portfolioData = balanceCache.get(userID, maxStaleness);
+    	if (portfolioData == null) {
+    		long version = balanceCache.getVersion(userID);
+    		portfolioData = portfoliosService.getAccountData(userID);
+    		balanceCache.put(userID, portfolioData, version);
+    	}
+    	return portfolioData;
+    }
+
+    /**
+     * Returns the size, hits, misses and evictions of the balance cache
+     */
+    public Map<String, Long> getBalanceCacheStats() {
+    	return balanceCache.getStats();
+    }
+
+    private AccountDataBean getAccountDataWithoutBalance(Connection conn, String userID) throws Exception {
         PreparedStatement stmt = getStatement(conn, getAccountForUserSQL);
         stmt.setString(1, userID);
         ResultSet rs = stmt.executeQuery();
@@ -600,20 +2305,79 @@ public class AccountsService
         {
         	Log.debug("AccountsService:getAccountData() - cannot find account for user: " + userID);
         }
-        else 
+        else
         {
         	accountData = getAccountDataFromResultSet(rs);
-        	// ask the portfolios for the most recent balance so web app can display it
-        	// changed this code to get the balance and open balance from the portfolio
-        	AccountDataBean portfolioData = portfoliosService.getAccountData(accountData.getProfileID());
-        	accountData.setBalance(portfolioData.getBalance());
-        	accountData.setOpenBalance(portfolioData.getOpenBalance());
         }
         stmt.close();
-        
+
         return accountData;
     }
 
+    private void getAccountsDataWithoutBalance(Connection conn, List<String> userIDs, Map<String, AccountDataBean> accounts) throws Exception {
+        // the in-list is padded with the last user id to one of a few sizes, so that the
+        // statement cache holds a handful of these statements instead of one per length
+        int size = IN_LIST_CHUNK_SIZE;
+        for (int inListSize : IN_LIST_SIZES) {
+        	if (inListSize >= userIDs.size()) {
+        		size = inListSize;
+        		break;
+        	}
+        }
+        StringBuilder sql = new StringBuilder(getAccountsForUsersSQL).append("(");
+        for (int i = 0; i < size; i++) {
+        	sql.append((i == 0) ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        PreparedStatement stmt = getStatement(conn, sql.toString());
+        for (int i = 0; i < size; i++) {
+        	stmt.setString(i + 1, userIDs.get(Math.min(i, userIDs.size() - 1)));
+        }
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+        	AccountDataBean accountData = getAccountDataFromResultSet(rs);
+        	accounts.put(accountData.getProfileID(), accountData);
+        }
+        stmt.close();
+    }
+
+    /*
+     * Get the balance from the cache, or else start a request to the portfolios on the remote call executor
+     */
+    private CompletableFuture<AccountDataBean> getPortfolioDataAsync(final String userID, long maxStaleness) {
+    	AccountDataBean cachedData = balanceCache.get(userID, maxStaleness);
+    	if (cachedData != null) {
+    		return CompletableFuture.completedFuture(cachedData);
+    	}
+    	final long version = balanceCache.getVersion(userID);
+    	return CompletableFuture.supplyAsync(
+    		new Supplier<AccountDataBean>() {
+    			public AccountDataBean get() {
+    				try {
+    					AccountDataBean portfolioData = portfoliosService.getAccountData(userID);
+    					balanceCache.put(userID, portfolioData, version);
+    					return portfolioData;
+    				} catch (Exception e) {
+    					throw new CompletionException(e);
+    				}
+    			}
+    		}, remoteCallExecutor);
+    }
+
+    /*
+     * Wait for a remote call to complete and rethrow its original exception if it failed
+     */
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+    	try {
+    		return future.join();
+    	} catch (CompletionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof Exception) throw (Exception) cause;
+    		throw e;
+    	}
+    }
+
     private AccountProfileDataBean getAccountProfileData(Connection conn, String userID) throws Exception {
         PreparedStatement stmt = getStatement(conn, getAccountProfileSQL);
         stmt.setString(1, userID);
@@ -666,7 +2430,8 @@ public class AccountsService
                  //rs.getBigDecimal("balance"), rs.getBigDecimal("openBalance"), 
                  rs.getString("profile_userID"));     
         
-        return accountData;
+        // add the logins/logouts not yet written
+        return loginCounters.merge(accountData);
     }
 
     private AccountProfileDataBean getAccountProfileDataFromResultSet(ResultSet rs) throws Exception {
@@ -680,6 +2445,74 @@ public class AccountsService
     }
     
     // Common database utilities
+
+    /*
+     * Add the USERCLASS column (see UserClass) and its index to an ACCOUNTEJB created before it,
+     * and classify the existing users. A table that has the column, or no table, is left alone.
+     */
+    private void migrateUserClass() throws Exception
+    {
+    	Connection conn = null;
+    	Statement stmt = null;
+    	try
+    	{
+    		conn = getConn();
+    		stmt = conn.createStatement();
+    		try
+    		{
+    			stmt.executeQuery("select count(*) from accountejb where 1 = 0").close();
+    		}
+    		catch (SQLException e)
+    		{
+    			// no tables yet; recreateDBTables creates them with the column
+    			conn.rollback();
+    			return;
+    		}
+    		try
+    		{
+    			stmt.executeQuery("select userclass from accountejb where 1 = 0").close();
+    			commit(conn);
+    			return;
+    		}
+    		catch (SQLException e)
+    		{
+    			conn.rollback();
+    		}
+
+    		String dbProductName = conn.getMetaData().getDatabaseProductName();
+    		Log.log("AccountsService:migrateUserClass() - adding the USERCLASS column to ACCOUNTEJB on " + dbProductName);
+    		if (dbProductName.startsWith("Oracle"))
+    		{
+    			stmt.executeUpdate("alter table accountejb add (userclass number(3) default 0 not null)");
+    		}
+    		else if (dbProductName.startsWith("Informix Dynamic Server"))
+    		{
+    			stmt.executeUpdate("alter table accountejb add (userclass smallint default 0 not null)");
+    		}
+    		else if (dbProductName.startsWith("Microsoft SQL Server"))
+    		{
+    			stmt.executeUpdate("alter table accountejb add userclass smallint default 0 not null");
+    		}
+    		else
+    		{
+    			stmt.executeUpdate("alter table accountejb add column userclass smallint default 0 not null");
+    		}
+    		stmt.executeUpdate("update accountejb set userclass = " + UserClass.TRADE + " where profile_userid like 'uid:%'");
+    		stmt.executeUpdate("update accountejb set userclass = " + UserClass.NEW + " where profile_userid like 'ru:%'");
+    		stmt.executeUpdate("create index account_userclass on accountejb(userclass)");
+    		commit(conn);
+    	}
+    	catch (Exception e)
+    	{
+    		rollBack(conn, e);
+    		throw e;
+    	}
+    	finally
+    	{
+    		if (stmt != null) stmt.close();
+    		releaseConn(conn);
+    	}
+    }
     
     private String checkDBProductName() throws Exception 
 	{
@@ -753,7 +2586,29 @@ public class AccountsService
      * Lookup the TradeData datasource
      */
     private void getDataSource() throws Exception {
-        datasource = (DataSource) context.lookup(dsName);
+        datasource = lookupDataSource();
+    }
+
+    /*
+     * Lookup the pool and decorate it to time the connections (unless turned off)
+     */
+    private static DataSource lookupDataSource() throws Exception {
+        DataSource pool = (DataSource) context.lookup(dsName);
+        AccountsMetrics.bindDataSource(pool);
+        if (!InstrumentedDataSource.isEnabled()) return pool;
+        return new InstrumentedDataSource(pool, connectionLeakThreshold);
+    }
+
+    /**
+     * Returns the acquire, hold and leak statistics of the connections and the SQL texts with the most execution time
+     */
+    public Map<String, Object> getConnectionStats() {
+    	if (datasource instanceof InstrumentedDataSource) {
+    		return ((InstrumentedDataSource) datasource).getStats(20);
+    	}
+    	Map<String, Object> stats = new HashMap<String, Object>();
+    	stats.put("instrumented", false);
+    	return stats;
     }
 
     /*
@@ -770,6 +2625,20 @@ public class AccountsService
         return conn;
     }
 
+    /*
+     * Allocate the connection the key generator holds until it is re-initialized; it comes
+     * from the pool itself so that the instrumentation doesn't report it as a leak
+     */
+    private Connection getKeyGeneratorConn() throws Exception 
+    {
+        if (datasource == null) getDataSource();
+
+        Connection conn = InstrumentedDataSource.getPool(datasource).getConnection();
+        conn.setAutoCommit(false);
+
+        return conn;
+    }
+
     /*
      * Commit the provided connection if not null
      */
@@ -804,11 +2673,12 @@ public class AccountsService
     }
     
     /*
-     * Allocate a new prepared statement for this connection
+     * Prepare a statement through the pooled connection, which reuses it across checkouts
+     * (see AccountsApplication and TimedStatement)
      */
 	 
     private PreparedStatement getStatement(Connection conn, String sql) throws Exception {
-        return conn.prepareStatement(sql);
+        return TimedStatement.prepare(conn, sql);
     }
 	
 	//		-  Kept the sql statements for the accounts microservices; removed the others
@@ -817,10 +2687,34 @@ public class AccountsService
         "insert into accountejb "
             + "( accountid, creationDate, "
             //+ " openBalance, balance, " -- removed from accounts db
-            + "lastLogin, loginCount, logoutCount, profile_userid) "
+            + "lastLogin, loginCount, logoutCount, profile_userid, userclass) "
             + "VALUES (  ?  ,  ?  ,  "
             // +  ?  ,  ?  ,  -- removed from accounts db
-            + "?  ,  ?  ,  ?  ,  ?  )";
+            + "?  ,  ?  ,  ?  ,  ?  ,  ?  )";
+
+    // ACCOUNTEJB may be list partitioned by USERCLASS (see dbscripts/oracle/AccountsTable.ddl);
+    // DAYTRADER_PURGE_NEW_USERS_SQL then replaces this delete with e.g. a partition truncate,
+    // which also removes the users registered since the snapshot
+    private static final boolean purgeNewAccountsUpToSnapshot = System.getenv("DAYTRADER_PURGE_NEW_USERS_SQL") == null;
+
+    private static final String purgeNewAccountsSQL = !purgeNewAccountsUpToSnapshot
+    	? System.getenv("DAYTRADER_PURGE_NEW_USERS_SQL")
+    	: "delete from accountejb where userclass = " + UserClass.NEW + " and creationDate <= ?";
+
+    private static final String deleteAccountSQL =
+        "delete from accountejb where profile_userid = ?";
+
+    private static final String deleteAccountProfileSQL =
+        "delete from accountprofileejb where userid = ?";
+
+    // the columns are read by position (see getExportedAccount); the user id range is appended
+    private static final String exportAccountsSQL =
+        "select a.accountid, a.profile_userid, a.creationdate, a.lastlogin, a.logincount, a.logoutcount, "
+            + "ap.fullname, ap.address, ap.email "
+            + "from accountejb a, accountprofileejb ap where a.profile_userid = ap.userid";
+
+    private static final String EXPORT_CSV_HEADER =
+        "accountid,userid,creationdate,lastlogin,logincount,logoutcount,fullname,address,email\n";
 
     private static final String createAccountProfileSQL =
         "insert into accountprofileejb " + "( userid, passwd, fullname, address, email, creditcard ) "
@@ -833,6 +2727,31 @@ public class AccountsService
     private final static String loginSQL =
         "update accountejb set lastLogin=?, logincount=logincount+1 " + "where profile_userid=?";
 
+    // login fallback; the account is joined with its profile instead of a nested subquery
+    private static final String getAccountWithPasswordSQL =
+        "select a.*, ap.passwd from accountejb a inner join accountprofileejb ap "
+            + "on a.profile_userid = ap.userid where ap.userid = ?";
+
+    // single round trip login; the parameters are lastLogin, userid and passwd
+    private static final String loginReturningPostgreSQL =
+        "update accountejb a set lastLogin=?, logincount=a.logincount+1 from accountprofileejb ap "
+            + "where a.profile_userid = ap.userid and ap.userid = ? and ap.passwd = ? returning a.*";
+
+    private static final String loginReturningSQLServerSQL =
+        "update a set a.lastLogin=?, a.logincount=a.logincount+1 output inserted.* "
+            + "from accountejb a inner join accountprofileejb ap on a.profile_userid = ap.userid "
+            + "where ap.userid = ? and ap.passwd = ?";
+
+    private static final String loginReturningDB2SQL =
+        "select * from final table (update accountejb set lastLogin=?, logincount=logincount+1 "
+            + "where profile_userid = (select userid from accountprofileejb where userid = ? and passwd = ?))";
+
+    private static final String flushLoginCountsSQL =
+        "update accountejb set lastLogin=?, logincount=logincount+?, logoutcount=logoutcount+? where profile_userid=?";
+
+    private static final String flushLogoutCountsSQL =
+        "update accountejb set logoutcount=logoutcount+? where profile_userid=?";
+
     private static final String logoutSQL =
         "update accountejb set logoutcount=logoutcount+1 " + "where profile_userid=?";
 
@@ -844,6 +2763,13 @@ public class AccountsService
     	"select * from accountejb a where a.profile_userid = "
     		+ "( select userid from accountprofileejb ap where ap.userid = ?)";
 
+    // the in-list of bind parameters is appended for each chunk of users
+    private static final String getAccountsForUsersSQL =
+    	"select a.* from accountejb a, accountprofileejb ap where a.profile_userid = ap.userid and ap.userid in ";
+
+    private static final int IN_LIST_CHUNK_SIZE = 100;
+    private static final int[] IN_LIST_SIZES = { 1, 10, 25, 50, IN_LIST_CHUNK_SIZE };
+
 // Moved to portfolios
 //    
 //    private final static String getAccountProfileForAccountSQL =
@@ -861,17 +2787,74 @@ public class AccountsService
 
         try {
             context = new InitialContext();
-            datasource = (DataSource) context.lookup(dsName);
+            datasource = lookupDataSource();
         } catch (Exception e) {
         	Log.error("AccountsService:init() - error on JNDI lookup of " + dsName + " -- AccountsService will not work",e);
             return;
         }
         TradeConfig.setPublishQuotePriceChange(false);
         initialized = true;
+
+        // Every insert writes the user class, so an older accounts table is migrated before it is used
+        if (!"false".equalsIgnoreCase(System.getenv("DAYTRADER_MIGRATE_USERCLASS"))) {
+        	try {
+        		new AccountsService().migrateUserClass();
+        	} catch (Throwable t) {
+        		Log.error("AccountsService:migrateUserClass() - failure to add the USERCLASS column to ACCOUNTEJB", t);
+        	}
+        }
+
+        // Seed the run statistics at startup so the first resetTrade doesn't scan the tables
+        runStatsExecutor.execute(new Runnable() {
+        	public void run() {
+        		try {
+        			new AccountsService().seedRunStats();
+        		} catch (Throwable t) {
+        			// e.g. the tables don't exist yet; resetTrade seeds them on first use
+        			Log.debug("AccountsService:seedRunStats() - the run statistics were not seeded at startup: " + t);
+        		}
+        	}
+        });
+
+        if (counterFlushInterval > 0) {
+        	counterFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        		public Thread newThread(Runnable r) {
+        			Thread thread = new Thread(r, "daytrader-counter-flush");
+        			thread.setDaemon(true);
+        			return thread;
+        		}
+        	});
+        	counterFlusher.scheduleWithFixedDelay(new Runnable() {
+        		public void run() {
+        			try {
+        				new AccountsService().flushLoginCounters();
+        			} catch (Throwable t) {
+        				Log.error("AccountsService:flushLoginCounters() - failure to flush the login counters; retrying", t);
+        			}
+        		}
+        	}, counterFlushInterval, counterFlushInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public static void destroy() {
-        return;
+        remoteCallExecutor.shutdown();
+        jdbcExecutor.shutdown();
+        jdbcCompletionExecutor.shutdown();
+        AsyncRemoteClient.shutdown();
+        runStatsExecutor.shutdown();
+        if (datasource instanceof InstrumentedDataSource) {
+        	((InstrumentedDataSource) datasource).shutdown();
+        }
+        if (counterFlusher != null) {
+        	counterFlusher.shutdown();
+        	try {
+        		// write what the last interval counted
+        		counterFlusher.awaitTermination(10, TimeUnit.SECONDS);
+        		new AccountsService().flushLoginCounters();
+        	} catch (Throwable t) {
+        		Log.error("AccountsService:destroy() - failure to flush the login counters", t);
+        	}
+        }
     }
 
 }
@@ -0,0 +1,288 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.utils.EnvSettings;
+
+/**
+ * A shared, non-blocking (NIO) HTTP client for the asynchronous remote calls.
+ *
+ * A few I/O reactor threads multiplex every call in flight, so a call waiting on the remote
+ * service holds neither a request thread nor a thread of its own; the caller gets a
+ * CompletableFuture that completes on a reactor thread. Like RemoteClientPool, the client
+ * keeps a bounded pool of keep-alive connections per route and is configured through the
+ * same environment variables (DAYTRADER_REMOTE_CONNECT_TIMEOUT, DAYTRADER_REMOTE_READ_TIMEOUT,
+ * DAYTRADER_REMOTE_POOL_MAX_PER_ROUTE, DAYTRADER_REMOTE_KEEPALIVE), plus:
+ *
+ * - DAYTRADER_REMOTE_IO_THREADS: I/O reactor threads (default: the number of processors)
+ *
+ * The completions run on the reactor threads, so they must not block; hand blocking work
+ * (e.g. JDBC) to an executor.
+ *
+ */
+
+//Don't do any logging from the async remote client unless you send it to its own logger;
+//it is shared with the integration tests through the base remote call service.
+
+public class AsyncRemoteClient
+{
+	private static final int connectTimeout = EnvSettings.getInt("DAYTRADER_REMOTE_CONNECT_TIMEOUT", 5000);
+	private static final int readTimeout = EnvSettings.getInt("DAYTRADER_REMOTE_READ_TIMEOUT", 30000);
+	private static final int maxPerRoute = EnvSettings.getInt("DAYTRADER_REMOTE_POOL_MAX_PER_ROUTE", 100);
+	private static final int keepAlive = EnvSettings.getInt("DAYTRADER_REMOTE_KEEPALIVE", 60000);
+	private static final int ioThreads = EnvSettings.getInt("DAYTRADER_REMOTE_IO_THREADS", Runtime.getRuntime().availableProcessors());
+
+	private static volatile AsyncRemoteClient instance = null;
+
+	private final PoolingNHttpClientConnectionManager connectionManager;
+	private final CloseableHttpAsyncClient client;
+
+	private AsyncRemoteClient() throws Exception
+	{
+		IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout(readTimeout)
+				.build();
+
+		Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+				.register("http", NoopIOSessionStrategy.INSTANCE)
+				// honors the javax.net.ssl.* system properties (truststore) like the blocking client
+				.register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+				.build();
+
+		// the connections are retired after the keep-alive period
+		connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig),
+				null, registry, null, null, keepAlive, TimeUnit.MILLISECONDS);
+		// one pool serves every route; bound each route like the blocking pools, not their sum
+		connectionManager.setMaxTotal(Integer.MAX_VALUE);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+
+		client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+		client.start();
+	}
+
+	/**
+	 * Returns the shared client, started on first use
+	 */
+	public static AsyncRemoteClient getInstance() throws Exception
+	{
+		AsyncRemoteClient client = instance;
+		if (client == null)
+		{
+			synchronized (AsyncRemoteClient.class)
+			{
+				client = instance;
+				if (client == null)
+				{
+					client = new AsyncRemoteClient();
+					instance = client;
+					AccountsMetrics.bindAsyncRemoteClient(client);
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Returns true once the shared client has been started
+	 */
+	public static boolean isStarted()
+	{
+		return instance != null;
+	}
+
+	/**
+	 * Sends the request and returns its response body; the future fails with the exception
+	 * BaseRemoteCallService.checkResponse maps an error status to
+	 */
+	public CompletableFuture<String> invoke(String url, String method, String body)
+	{
+		return execute(url, method, (body != null) ? new StringEntity(body, ContentType.APPLICATION_JSON) : null,
+				new EntityReader<String>()
+				{
+					public String read(HttpEntity entity) throws IOException
+					{
+						return EntityUtils.toString(entity, StandardCharsets.UTF_8);
+					}
+				});
+	}
+
+	/**
+	 * Sends the body written by the body codec (none if it is null) and returns the response read by
+	 * the response codec straight from the received bytes
+	 */
+	public <T, R> CompletableFuture<R> invoke(String url, String method, T body, JsonCodec<T> bodyCodec, 
+			final JsonCodec<R> responseCodec)
+	{
+		HttpEntity requestEntity = null;
+		if (body != null)
+		{
+			try
+			{
+				requestEntity = new ByteArrayEntity(bodyCodec.writeBytes(body), ContentType.APPLICATION_JSON);
+			}
+			catch (IOException e)
+			{
+				CompletableFuture<R> failed = new CompletableFuture<R>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		}
+		return execute(url, method, requestEntity, new EntityReader<R>()
+		{
+			public R read(HttpEntity entity) throws IOException
+			{
+				InputStream in = entity.getContent();
+				try
+				{
+					return responseCodec.read(in);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		});
+	}
+
+	private <R> CompletableFuture<R> execute(final String url, String method, HttpEntity requestEntity, 
+			final EntityReader<R> entityReader)
+	{
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		RequestBuilder builder = RequestBuilder.create(method).setUri(url)
+				.setHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+		if (requestEntity != null)
+		{
+			builder.setEntity(requestEntity);
+		}
+		HttpUriRequest request = builder.build();
+
+		client.execute(request, new FutureCallback<HttpResponse>()
+		{
+			public void completed(HttpResponse response)
+			{
+				try
+				{
+					BaseRemoteCallService.checkResponse(url, response.getStatusLine().getStatusCode());
+					// the response is buffered by the time the callback runs, so this doesn't block
+					HttpEntity entity = response.getEntity();
+					result.complete((entity != null) ? entityReader.read(entity) : null);
+				}
+				catch (Throwable t)
+				{
+					EntityUtils.consumeQuietly(response.getEntity());
+					result.completeExceptionally(t);
+				}
+			}
+
+			public void failed(Exception e)
+			{
+				result.completeExceptionally(e);
+			}
+
+			public void cancelled()
+			{
+				result.cancel(false);
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * Reads the (buffered) response body
+	 */
+	private interface EntityReader<R>
+	{
+		R read(HttpEntity entity) throws IOException;
+	}
+
+	/**
+	 * Returns the leased (active), available (idle), pending (waiting) and max connections
+	 */
+	public Map<String, Integer> getStats()
+	{
+		PoolStats poolStats = connectionManager.getTotalStats();
+		Map<String, Integer> stats = new LinkedHashMap<String, Integer>();
+		stats.put("leased", poolStats.getLeased());
+		stats.put("available", poolStats.getAvailable());
+		stats.put("pending", poolStats.getPending());
+		stats.put("max", poolStats.getMax());
+		return stats;
+	}
+
+	/**
+	 * Closes the shared client and its connections
+	 */
+	public static void shutdown()
+	{
+		AsyncRemoteClient client = instance;
+		instance = null;
+		if (client != null)
+		{
+			try
+			{
+				client.client.close();
+			}
+			catch (Exception e)
+			{
+				// closing anyway
+			}
+		}
+	}
+}
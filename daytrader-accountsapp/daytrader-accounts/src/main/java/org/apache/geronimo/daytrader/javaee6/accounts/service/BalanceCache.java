@@ -0,0 +1,240 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+
+/**
+ * A read-through cache of the balance and open balance the portfolios keep for each user.
+ *
+ * The accounts only cache these fields; the portfolios own them, so the cache is off unless
+ * it is given a size. It is bounded in size: when it is full, the least recently used of a
+ * few sampled entries is evicted (an approximate LRU that needs no global lock). A cached
+ * balance is served for the time-to-live; a caller may accept an older one with maxStaleness,
+ * up to the maximum staleness, or ask for a fresher one.
+ *
+ * An update of the balance invalidates the user. A balance read before the invalidation
+ * but put after it is dropped: the caller takes the version of the user before the read
+ * and put only caches the balance if the version hasn't changed since. Once invalidate
+ * returns, no get sees a balance read before it.
+ *
+ * The cache is configured through the environment:
+ *
+ * - DAYTRADER_BALANCE_CACHE_SIZE: maximum number of users cached; 0 (the default) disables the cache
+ * - DAYTRADER_BALANCE_CACHE_TTL: time-to-live of an entry in milliseconds (default 1000)
+ * - DAYTRADER_BALANCE_CACHE_MAX_STALENESS: the oldest entry, in milliseconds, a caller may
+ *   accept with maxStaleness (default 10000)
+ *
+ */
+
+public class BalanceCache
+{
+	// the entries sampled for the least recently used one when the cache is full
+	private static final int EVICTION_SAMPLES = 8;
+	private static final int EVICTION_SKIP = 64;
+
+	// the versions are striped by userID, so an invalidation may drop the put of another user
+	private static final int VERSION_STRIPES = 1024;
+
+	private final int maxSize;
+	private final long timeToLive;
+	private final long maxStaleness;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong droppedPuts = new AtomicLong();
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+	public BalanceCache(int maxSize, long timeToLive, long maxStaleness)
+	{
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.maxStaleness = Math.max(maxStaleness, timeToLive);
+	}
+
+	public boolean isEnabled()
+	{
+		return maxSize > 0 && timeToLive > 0;
+	}
+
+	/**
+	 * Returns the cached balance data of the user if it is not older than maxStaleness
+	 * (capped at the maximum staleness); otherwise, returns null.
+	 *
+	 * @param maxStaleness the maximum age in milliseconds; negative to use the time-to-live
+	 */
+	public AccountDataBean get(String userID, long maxStaleness)
+	{
+		if (!isEnabled() || maxStaleness == 0)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		long maxAge = (maxStaleness < 0) ? timeToLive : Math.min(maxStaleness, this.maxStaleness);
+		Entry entry = entries.get(userID);
+		long now = System.currentTimeMillis();
+		if (entry != null && now - entry.loadedAt > this.maxStaleness)
+		{
+			entries.remove(userID, entry); // no caller accepts it anymore
+			entry = null;
+		}
+
+		if (entry == null || now - entry.loadedAt > maxAge)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		entry.lastUsed = now;
+		hits.incrementAndGet();
+		AccountDataBean portfolioData = new AccountDataBean();
+		portfolioData.setProfileID(userID);
+		portfolioData.setBalance(entry.balance);
+		portfolioData.setOpenBalance(entry.openBalance);
+		return portfolioData;
+	}
+
+	/**
+	 * Returns the version of the user to pass to put; take it before reading the balance
+	 */
+	public long getVersion(String userID)
+	{
+		return versions.get(stripe(userID));
+	}
+
+	/**
+	 * Caches the balance data of the user read since the given version, unless the user has
+	 * been invalidated meanwhile
+	 */
+	public void put(String userID, AccountDataBean portfolioData, final long version)
+	{
+		if (!isEnabled() || portfolioData == null) return;
+
+		long now = System.currentTimeMillis();
+		final Entry entry = new Entry(portfolioData.getBalance(), portfolioData.getOpenBalance(), now);
+		final boolean[] added = new boolean[1];
+		// the version is checked under the lock of the user's bin, which invalidate's remove takes
+		// too: either the entry is put before the remove (and removed by it) or it isn't put
+		Entry cached = entries.compute(userID, new BiFunction<String, Entry, Entry>() {
+			public Entry apply(String key, Entry current) {
+				if (getVersion(key) != version) return current;
+				added[0] = (current == null);
+				return entry;
+			}
+		});
+		if (cached != entry)
+		{
+			droppedPuts.incrementAndGet();
+			return;
+		}
+		if (added[0] && entries.size() > maxSize) evict(now);
+	}
+
+	public void invalidate(String userID)
+	{
+		versions.incrementAndGet(stripe(userID));
+		entries.remove(userID);
+	}
+
+	public void clear()
+	{
+		for (int i = 0; i < VERSION_STRIPES; i++)
+		{
+			versions.incrementAndGet(i);
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Returns the size, hits, misses, evictions and dropped puts of the cache
+	 */
+	public Map<String, Long> getStats()
+	{
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("size", (long) entries.size());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("droppedPuts", droppedPuts.get());
+		return stats;
+	}
+
+	/*
+	 * Remove the least recently used (or an expired) entry of a few sampled ones until the
+	 * cache is back to its size
+	 */
+	private void evict(long now)
+	{
+		while (entries.size() > maxSize)
+		{
+			// start the sample at a random entry, so that the first buckets aren't always evicted
+			Iterator<Map.Entry<String, Entry>> sample = entries.entrySet().iterator();
+			for (int skip = ThreadLocalRandom.current().nextInt(EVICTION_SKIP); skip > 0 && sample.hasNext(); skip--) sample.next();
+			if (!sample.hasNext()) sample = entries.entrySet().iterator();
+			Map.Entry<String, Entry> eldest = null;
+			for (int i = 0; i < EVICTION_SAMPLES && sample.hasNext(); i++)
+			{
+				Map.Entry<String, Entry> candidate = sample.next();
+				if (now - candidate.getValue().loadedAt > maxStaleness)
+				{
+					eldest = candidate;
+					break;
+				}
+				if (eldest == null || candidate.getValue().lastUsed < eldest.getValue().lastUsed) eldest = candidate;
+			}
+			if (eldest == null) return;
+			if (entries.remove(eldest.getKey(), eldest.getValue())) evictions.incrementAndGet();
+		}
+	}
+
+	private static int stripe(String userID)
+	{
+		return (userID.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+	}
+
+	private static class Entry
+	{
+		final BigDecimal balance;
+		final BigDecimal openBalance;
+		final long loadedAt;
+		volatile long lastUsed;
+
+		Entry(BigDecimal balance, BigDecimal openBalance, long loadedAt)
+		{
+			this.balance = balance;
+			this.openBalance = openBalance;
+			this.loadedAt = loadedAt;
+			this.lastUsed = loadedAt;
+		}
+	}
+}
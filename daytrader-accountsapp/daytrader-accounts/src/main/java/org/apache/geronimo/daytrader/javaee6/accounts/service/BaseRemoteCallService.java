@@ -17,6 +17,11 @@
 
 package org.apache.geronimo.daytrader.javaee6.accounts.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
 import javax.transaction.NotSupportedException;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.ClientErrorException;
@@ -29,13 +34,13 @@ import javax.ws.rs.NotFoundException;
 import javax.ws.rs.RedirectionException;
 import javax.ws.rs.ServerErrorException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.glassfish.jersey.client.ClientProperties;
-import org.glassfish.jersey.client.HttpUrlConnectorProvider;
 
 //Don't do any logging from the base remote call service unless you send it to its own logger;
 //otherwise the log messages will be written to the integration test and to the server log and
@@ -51,8 +56,64 @@ public class BaseRemoteCallService {
     public static String invokeEndpoint(String url, String method, String body, int connTimeOut) throws Exception
     {       	
    		Response  response = sendRequest(url, method, body, connTimeOut);
-   		int responseCode = response.getStatus();
-   		
+   		try
+   		{
+   			checkResponse(url, response);
+   			return response.readEntity(String.class);
+   		}
+   		finally
+   		{
+   			// Always close the response so the connection goes back to the pool 
+   			response.close();
+   		}
+    }
+
+    /**
+     * Invokes the endpoint with the body written by the body codec (none if the body is null) and returns
+     * the response read by the response codec; the bodies are streamed to and from the connection
+     */
+    public static <T, R> R invokeEndpoint(String url, String method, final T body, final JsonCodec<T> bodyCodec, 
+    		JsonCodec<R> responseCodec) throws Exception
+    {
+    	Entity<?> entity = Entity.json(null); // Entity must be null for http method GET.
+    	if (body != null)
+    	{
+    		entity = Entity.json(new StreamingOutput()
+    		{
+    			public void write(OutputStream out) throws IOException
+    			{
+    				bodyCodec.write(body, out);
+    			}
+    		});
+    	}
+   		Response response = sendRequest(url, method, entity, -1);
+   		try
+   		{
+   			checkResponse(url, response);
+   			InputStream in = response.readEntity(InputStream.class);
+   			try
+   			{
+   				return responseCodec.read(in);
+   			}
+   			finally
+   			{
+   				in.close();
+   			}
+   		}
+   		finally
+   		{
+   			// Always close the response so the connection goes back to the pool 
+   			response.close();
+   		}
+    }
+
+    protected static void checkResponse(String url, Response response) throws Exception
+    {
+   		checkResponse(url, response.getStatus());
+    }
+
+    protected static void checkResponse(String url, int responseCode) throws Exception
+    {
    		// switch statement 
    		switch(responseCode)
    		{
@@ -106,25 +167,62 @@ public class BaseRemoteCallService {
        				throw new ServerErrorException("A server error from : " + url, responseCode);
        			}
    		}
-   		
-   		String responseEntity = response.readEntity(String.class);
-   		response.close();
-        return responseEntity;
+    }
+
+    /**
+     * Invokes the endpoint without blocking the calling thread (see AsyncRemoteClient)
+     */
+    public static CompletableFuture<String> invokeEndpointAsync(String url, String method, String body)
+    {
+    	try
+    	{
+    		return AsyncRemoteClient.getInstance().invoke(url, method, body);
+    	}
+    	catch (Exception e)
+    	{
+    		CompletableFuture<String> failed = new CompletableFuture<String>();
+    		failed.completeExceptionally(e);
+    		return failed;
+    	}
+    }
+
+    /**
+     * Invokes the endpoint without blocking the calling thread, with the bodies read and written by the codecs
+     */
+    public static <T, R> CompletableFuture<R> invokeEndpointAsync(String url, String method, T body, JsonCodec<T> bodyCodec,
+    		JsonCodec<R> responseCodec)
+    {
+    	try
+    	{
+    		return AsyncRemoteClient.getInstance().invoke(url, method, body, bodyCodec, responseCodec);
+    	}
+    	catch (Exception e)
+    	{
+    		CompletableFuture<R> failed = new CompletableFuture<R>();
+    		failed.completeExceptionally(e);
+    		return failed;
+    	}
     }
 
     public static Response sendRequest(String url, String method, String body, int connTimeOut) 
     {
-    	// Jersey client doesn't support the Http PATCH method without this workaround
-        Client client = ClientBuilder.newClient()
-        		.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+    	return sendRequest(url, method, Entity.json(body), connTimeOut);
+    }
+
+    public static Response sendRequest(String url, String method, Entity<?> entity, int connTimeOut) 
+    {
+    	// Reuse the shared client (and its keep-alive connections) for the target route;
+    	// the pooled connector supports the Http PATCH method without any workaround
+        Client client = RemoteClientPool.forUrl(url).getClient();
         
+        WebTarget target = client.target(url);
+        Invocation.Builder request = target.request();
         if (connTimeOut > 0)
         {
-        	client.property(ClientProperties.CONNECT_TIMEOUT, connTimeOut);
+        	request.property(ClientProperties.CONNECT_TIMEOUT, connTimeOut);
         }
         
-        WebTarget target = client.target(url);
-        Response response = target.request().method(method, Entity.json(body));
+        Response response = request.method(method, entity);
         return response;
     }
 }
@@ -0,0 +1,235 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a (parallel) database population: the rows written by each partition
+ * of the [offset, offset+limit) range and the overall throughput in rows per second.
+ *
+ * The partitions of an import (see AccountsService#tradeImportDB) are byte ranges of the
+ * file instead; their rows aren't known in advance (-1) and each reports the offset of the
+ * rows it has committed so far. An interrupted import is resumed from the ranges of the
+ * partitions that didn't finish (see getResumeRanges).
+ *
+ */
+
+public class BuildProgress
+{
+	private final long startTime = System.currentTimeMillis();
+	private volatile long endTime = 0;
+	private volatile boolean cancelled = false;
+	private final List<Partition> partitions = new ArrayList<Partition>();
+
+	public Partition addPartition(int from, int to)
+	{
+		Partition partition = new Partition(this, from, to);
+		partitions.add(partition);
+		return partition;
+	}
+
+	public FilePartition addFilePartition(long from, long to)
+	{
+		FilePartition partition = new FilePartition(this, from, to);
+		partitions.add(partition);
+		return partition;
+	}
+
+	public void finish()
+	{
+		endTime = System.currentTimeMillis();
+	}
+
+	public boolean isDone()
+	{
+		return endTime != 0;
+	}
+
+	/**
+	 * Stops the partitions that are still running at their next commit (e.g. after one failed)
+	 */
+	void cancel()
+	{
+		cancelled = true;
+	}
+
+	public List<Partition> getPartitions()
+	{
+		return partitions;
+	}
+
+	public long getRowsTotal()
+	{
+		long rowsTotal = 0;
+		for (Partition partition : partitions)
+		{
+			if (partition.getRowsTotal() < 0) return -1;
+			rowsTotal += partition.getRowsTotal();
+		}
+		return rowsTotal;
+	}
+
+	public long getRowsDone()
+	{
+		long rowsDone = 0;
+		for (Partition partition : partitions)
+		{
+			rowsDone += partition.getRowsDone();
+		}
+		return rowsDone;
+	}
+
+	public long getElapsedMillis()
+	{
+		return ((endTime != 0) ? endTime : System.currentTimeMillis()) - startTime;
+	}
+
+	public long getRowsPerSecond()
+	{
+		long elapsed = getElapsedMillis();
+		return (elapsed > 0) ? (getRowsDone() * 1000) / elapsed : 0;
+	}
+
+	/**
+	 * The [from-to) ranges of the imported file that are not committed yet, e.g. "0-1024,4096-8192";
+	 * empty once the import has completed and null if this isn't an import
+	 */
+	public String getResumeRanges()
+	{
+		StringBuilder ranges = null;
+		for (Partition partition : partitions)
+		{
+			if (!(partition instanceof FilePartition)) continue;
+			if (ranges == null) ranges = new StringBuilder();
+			FilePartition filePartition = (FilePartition) partition;
+			long committed = filePartition.getCommittedOffset();
+			if ((filePartition.isDone() && filePartition.getError() == null) || committed >= filePartition.getTo()) continue;
+			if (ranges.length() > 0) ranges.append(',');
+			ranges.append(committed).append('-').append(filePartition.getTo());
+		}
+		return (ranges != null) ? ranges.toString() : null;
+	}
+
+	public static class Partition
+	{
+		private final BuildProgress progress;
+		private final long from;
+		private final long to;
+		private final AtomicLong rowsDone = new AtomicLong();
+		private volatile boolean done = false;
+		private volatile String error = null;
+
+		Partition(BuildProgress progress, long from, long to)
+		{
+			this.progress = progress;
+			this.from = from;
+			this.to = to;
+		}
+
+		public long getFrom()
+		{
+			return from;
+		}
+
+		public long getTo()
+		{
+			return to;
+		}
+
+		public long getRowsTotal()
+		{
+			return to - from;
+		}
+
+		public long getRowsDone()
+		{
+			return rowsDone.get();
+		}
+
+		public boolean isDone()
+		{
+			return done;
+		}
+
+		public String getError()
+		{
+			return error;
+		}
+
+		void checkCancelled()
+		{
+			if (progress.cancelled) throw new CancellationException("Another partition failed");
+		}
+
+		void addRows(long rows)
+		{
+			rowsDone.addAndGet(rows);
+		}
+
+		void finish(Throwable t)
+		{
+			if (t != null) error = t.toString();
+			done = true;
+		}
+	}
+
+	/**
+	 * A [from, to) byte range of an imported file
+	 */
+	public static class FilePartition extends Partition
+	{
+		private volatile long committedOffset;
+		private final AtomicLong rowsSkipped = new AtomicLong();
+
+		FilePartition(BuildProgress progress, long from, long to)
+		{
+			super(progress, from, to);
+			this.committedOffset = from;
+		}
+
+		@Override
+		public long getRowsTotal()
+		{
+			return isDone() ? getRowsDone() + getRowsSkipped() : -1;
+		}
+
+		/**
+		 * The rows of users that already existed
+		 */
+		public long getRowsSkipped()
+		{
+			return rowsSkipped.get();
+		}
+
+		public long getCommittedOffset()
+		{
+			return committedOffset;
+		}
+
+		void commit(long rows, long skipped, long offset)
+		{
+			addRows(rows);
+			rowsSkipped.addAndGet(skipped);
+			committedOffset = offset;
+		}
+	}
+}
@@ -0,0 +1,500 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.utils.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+/**
+ * A DataSource that decorates the pool to show where the time of a connection goes.
+ *
+ * - acquire: how long getConnection() waited for the pool
+ * - hold: how long each connection was held until close(), and whether the holding thread
+ *   made a remote call (see remoteCall()) meanwhile, which holds a connection idle
+ * - execute: the time of each execution per SQL text (recorded by the TimedStatement
+ *   proxies; the export cursor and the DDL of recreateDBTables aren't timed)
+ * - leaks: the connections held longer than the leak threshold, logged once with the stack
+ *   of the holding thread at the time of detection or, if DAYTRADER_CONNECTION_LEAK_STACKS
+ *   is set, the stack of the code that acquired them
+ *
+ * The same measurements go to the metrics (see AccountsMetrics) and to getStats(). A
+ * connection that is held on purpose for the life of the process (the key generator's) is
+ * taken from the pool itself (see getPool()), so it isn't reported as a leak.
+ *
+ * Configured through the environment:
+ *
+ * - DAYTRADER_DATASOURCE_INSTRUMENTATION: false to use the pool undecorated (default true)
+ * - DAYTRADER_CONNECTION_LEAK_THRESHOLD: milliseconds before a held connection is reported
+ *   as a leak; 0 turns the leak detection off (default 30000)
+ * - DAYTRADER_CONNECTION_LEAK_STACKS: true to capture the stack of every getConnection()
+ *   for the leak reports; it walks the stack on each checkout, so it is off by default
+ *
+ */
+
+public class InstrumentedDataSource implements DataSource
+{
+	private static final boolean enabled = !"false".equalsIgnoreCase(System.getenv("DAYTRADER_DATASOURCE_INSTRUMENTATION"));
+	private static final boolean captureStacks = "true".equalsIgnoreCase(System.getenv("DAYTRADER_CONNECTION_LEAK_STACKS"));
+
+	// SQL text -> execution times; the in-lists of bind parameters are collapsed (?, ...)
+	private static final ConcurrentMap<String, SqlStats> sqlStats = new ConcurrentHashMap<String, SqlStats>();
+	private static final Pattern inListPattern = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+	private static final int MAX_SQL_TEXTS = 1000;
+
+	// the remote calls made by each thread, so a connection can tell whether its holder made one
+	private static final ThreadLocal<long[]> remoteCalls = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[1];
+		}
+	};
+
+	private static final int MAX_LEAKS_KEPT = 20;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator()
+	{
+		public long applyAsLong(long left, long right)
+		{
+			return Math.max(left, right);
+		}
+	};
+
+	private final DataSource delegate;
+	private final long leakThresholdNanos;
+	private final ScheduledExecutorService leakDetector;
+
+	private final Set<HeldConnection> held = Collections.newSetFromMap(new ConcurrentHashMap<HeldConnection, Boolean>());
+	private final List<Map<String, Object>> leaks = new ArrayList<Map<String, Object>>(); // the most recent, guarded by itself
+
+	private final LongAdder acquires = new LongAdder();
+	private final LongAdder acquireFailures = new LongAdder();
+	private final LongAdder acquireNanos = new LongAdder();
+	private final LongAccumulator maxAcquireNanos = new LongAccumulator(MAX, 0);
+	private final LongAdder holds = new LongAdder();
+	private final LongAdder holdNanos = new LongAdder();
+	private final LongAccumulator maxHoldNanos = new LongAccumulator(MAX, 0);
+	private final LongAdder holdsSpanningRemoteCalls = new LongAdder();
+	private final AtomicLong leaksDetected = new AtomicLong();
+
+	public InstrumentedDataSource(DataSource delegate, long leakThresholdMillis)
+	{
+		this.delegate = delegate;
+		this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, leakThresholdMillis));
+		if (leakThresholdMillis > 0)
+		{
+			leakDetector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "daytrader-connection-leak-detector");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(1000, leakThresholdMillis / 2);
+			leakDetector.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					detectLeaks();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			leakDetector = null;
+		}
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Notes that the current thread makes a remote call; the connections it holds span the call
+	 */
+	public static void remoteCall()
+	{
+		remoteCalls.get()[0]++;
+	}
+
+	/**
+	 * Returns the execution times of the given sql (resolved once by each statement proxy)
+	 */
+	public static SqlStats sqlStats(String sql)
+	{
+		if (!enabled) return null;
+		SqlStats stats = sqlStats.get(sql);
+		if (stats == null)
+		{
+			String text = inListPattern.matcher(sql.trim()).replaceAll("?, ...");
+			stats = sqlStats.get(text);
+			if (stats == null)
+			{
+				// don't let generated SQL texts grow the table without bounds
+				if (sqlStats.size() >= MAX_SQL_TEXTS) return null;
+				SqlStats newStats = new SqlStats(text);
+				stats = sqlStats.putIfAbsent(text, newStats);
+				if (stats == null) stats = newStats;
+			}
+			sqlStats.putIfAbsent(sql, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the pooled connection behind a connection handed out by this class
+	 */
+	public static Connection getDelegate(Connection conn)
+	{
+		if (conn != null && Proxy.isProxyClass(conn.getClass()))
+		{
+			InvocationHandler handler = Proxy.getInvocationHandler(conn);
+			if (handler instanceof HeldConnection) return ((HeldConnection) handler).connection;
+		}
+		return conn;
+	}
+
+	public DataSource getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * Returns the pool behind the datasource, whose connections aren't tracked
+	 */
+	public static DataSource getPool(DataSource datasource)
+	{
+		return (datasource instanceof InstrumentedDataSource) ? ((InstrumentedDataSource) datasource).delegate : datasource;
+	}
+
+	public Connection getConnection() throws SQLException
+	{
+		long start = System.nanoTime();
+		Connection conn = null;
+		try
+		{
+			conn = AccountsMetrics.getConnection(delegate);
+		}
+		catch (SQLException e)
+		{
+			acquireFailures.increment();
+			throw e;
+		}
+		catch (Exception e)
+		{
+			acquireFailures.increment();
+			throw new SQLException(e);
+		}
+		long elapsed = System.nanoTime() - start;
+		acquires.increment();
+		acquireNanos.add(elapsed);
+		maxAcquireNanos.accumulate(elapsed);
+		return hold(conn);
+	}
+
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		return hold(delegate.getConnection(username, password));
+	}
+
+	private Connection hold(Connection conn)
+	{
+		HeldConnection handler = new HeldConnection(conn);
+		held.add(handler);
+		return (Connection) Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(), 
+				new Class<?>[] { Connection.class }, handler);
+	}
+
+	/*
+	 * The connection was closed (returned to the pool)
+	 */
+	private void released(HeldConnection conn)
+	{
+		held.remove(conn);
+		long elapsed = System.nanoTime() - conn.acquiredAt;
+		boolean spannedRemoteCall = conn.remoteCallsOfHolder[0] != conn.remoteCallsAtAcquire;
+		holds.increment();
+		holdNanos.add(elapsed);
+		maxHoldNanos.accumulate(elapsed);
+		if (spannedRemoteCall) holdsSpanningRemoteCalls.increment();
+		AccountsMetrics.connectionHeld(conn.acquiredAt, spannedRemoteCall);
+		if (conn.leakReported)
+		{
+			Log.error("InstrumentedDataSource: the connection reported as a leak was returned after " 
+					+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms by " + conn.thread);
+		}
+	}
+
+	/*
+	 * Report (once) each connection held longer than the threshold
+	 */
+	void detectLeaks()
+	{
+		long now = System.nanoTime();
+		for (HeldConnection conn : held)
+		{
+			long elapsed = now - conn.acquiredAt;
+			if (elapsed < leakThresholdNanos || conn.leakReported) continue;
+			conn.leakReported = true;
+			leaksDetected.incrementAndGet();
+			AccountsMetrics.connectionLeaked();
+
+			StringWriter sw = new StringWriter();
+			String where;
+			if (conn.acquiredBy != null)
+			{
+				where = "acquiredAt";
+				conn.acquiredBy.printStackTrace(new PrintWriter(sw));
+			}
+			else
+			{
+				// sampled now: where the holder is, not where it acquired the connection
+				where = "holderAt";
+				Throwable holderAt = new Throwable("connection held");
+				holderAt.setStackTrace(conn.holder.getStackTrace());
+				holderAt.printStackTrace(new PrintWriter(sw));
+			}
+			Log.error("InstrumentedDataSource: connection held for " + TimeUnit.NANOSECONDS.toMillis(elapsed) 
+					+ " ms by " + conn.thread + "; possible leak, " + where + ":\n\t" + sw);
+
+			Map<String, Object> leak = new LinkedHashMap<String, Object>();
+			leak.put("thread", conn.thread);
+			leak.put("heldMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+			leak.put(where, sw.toString());
+			synchronized (leaks)
+			{
+				if (leaks.size() >= MAX_LEAKS_KEPT) leaks.remove(0);
+				leaks.add(leak);
+			}
+		}
+	}
+
+	/**
+	 * Stops the leak detection
+	 */
+	public void shutdown()
+	{
+		if (leakDetector != null) leakDetector.shutdownNow();
+	}
+
+	/**
+	 * Returns the acquire and hold statistics, the connections held now, the recent leaks and
+	 * the execution times of the sqlLimit SQL texts with the most total time
+	 */
+	public Map<String, Object> getStats(int sqlLimit)
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		long acquireCount = acquires.sum();
+		long holdCount = holds.sum();
+		stats.put("acquires", acquireCount);
+		stats.put("acquireFailures", acquireFailures.sum());
+		stats.put("acquireMeanMicros", (acquireCount > 0) ? TimeUnit.NANOSECONDS.toMicros(acquireNanos.sum() / acquireCount) : 0);
+		stats.put("acquireMaxMicros", TimeUnit.NANOSECONDS.toMicros(maxAcquireNanos.get()));
+		stats.put("held", held.size());
+		stats.put("holds", holdCount);
+		stats.put("holdMeanMicros", (holdCount > 0) ? TimeUnit.NANOSECONDS.toMicros(holdNanos.sum() / holdCount) : 0);
+		stats.put("holdMaxMicros", TimeUnit.NANOSECONDS.toMicros(maxHoldNanos.get()));
+		stats.put("holdsSpanningRemoteCalls", holdsSpanningRemoteCalls.sum());
+		stats.put("leakThresholdMillis", TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos));
+		stats.put("leaksDetected", leaksDetected.get());
+		synchronized (leaks)
+		{
+			stats.put("recentLeaks", new ArrayList<Map<String, Object>>(leaks));
+		}
+
+		List<SqlStats> byTotalTime = new ArrayList<SqlStats>(new HashSet<SqlStats>(sqlStats.values()));
+		Collections.sort(byTotalTime, new Comparator<SqlStats>()
+		{
+			public int compare(SqlStats a, SqlStats b)
+			{
+				return Long.compare(b.totalNanos.sum(), a.totalNanos.sum());
+			}
+		});
+		List<Map<String, Object>> statements = new ArrayList<Map<String, Object>>();
+		for (SqlStats sql : byTotalTime.subList(0, Math.min(sqlLimit, byTotalTime.size())))
+		{
+			statements.add(sql.toMap());
+		}
+		stats.put("statements", statements);
+		return stats;
+	}
+
+	// DataSource
+
+	public PrintWriter getLogWriter() throws SQLException
+	{
+		return delegate.getLogWriter();
+	}
+
+	public void setLogWriter(PrintWriter out) throws SQLException
+	{
+		delegate.setLogWriter(out);
+	}
+
+	public void setLoginTimeout(int seconds) throws SQLException
+	{
+		delegate.setLoginTimeout(seconds);
+	}
+
+	public int getLoginTimeout() throws SQLException
+	{
+		return delegate.getLoginTimeout();
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		return delegate.getParentLogger();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		if (iface.isInstance(this)) return iface.cast(this);
+		return delegate.unwrap(iface);
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException
+	{
+		return iface.isInstance(this) || delegate.isWrapperFor(iface);
+	}
+
+	/**
+	 * The execution times of one SQL text
+	 */
+	public static class SqlStats
+	{
+		private final String sql;
+		private final LongAdder executions = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+		SqlStats(String sql)
+		{
+			this.sql = sql;
+		}
+
+		public void record(long startNanos, boolean success)
+		{
+			long elapsed = System.nanoTime() - startNanos;
+			executions.increment();
+			if (!success) errors.increment();
+			totalNanos.add(elapsed);
+			maxNanos.accumulate(elapsed);
+		}
+
+		Map<String, Object> toMap()
+		{
+			long count = executions.sum();
+			long total = totalNanos.sum();
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("sql", sql);
+			map.put("executions", count);
+			map.put("errors", errors.sum());
+			map.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(total));
+			map.put("meanMicros", (count > 0) ? TimeUnit.NANOSECONDS.toMicros(total / count) : 0);
+			map.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+			return map;
+		}
+	}
+
+	/*
+	 * A connection handed out by the pool and not returned yet
+	 */
+	private class HeldConnection implements InvocationHandler
+	{
+		final Connection connection;
+		final long acquiredAt = System.nanoTime();
+		final Thread holder = Thread.currentThread();
+		final String thread = holder.getName();
+		final long[] remoteCallsOfHolder = remoteCalls.get();
+		final long remoteCallsAtAcquire = remoteCallsOfHolder[0];
+		final Throwable acquiredBy = (leakThresholdNanos > 0 && captureStacks) ? new Throwable("connection acquired") : null;
+		volatile boolean leakReported = false;
+		private boolean closed = false;
+
+		HeldConnection(Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			if ("close".equals(method.getName()) && (args == null || args.length == 0))
+			{
+				synchronized (this)
+				{
+					if (closed) return null;
+					closed = true;
+				}
+				try
+				{
+					connection.close();
+				}
+				finally
+				{
+					released(this);
+				}
+				return null;
+			}
+			try
+			{
+				return method.invoke(connection, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+	}
+}
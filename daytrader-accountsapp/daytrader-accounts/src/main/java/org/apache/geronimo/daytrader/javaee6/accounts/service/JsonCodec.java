@@ -0,0 +1,69 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+//Jackson Object Mapping
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * The JSON reader and writer of one type for the bodies of the remote calls.
+ *
+ * The ObjectReader and ObjectWriter are built once (they are immutable and thread-safe), so
+ * a call doesn't look up the type's (de)serializers again. The bodies are streamed between
+ * the connection and Jackson: no String is built for a request or a response. The streams
+ * are left open for the caller (the remote call layer) to close.
+ *
+ */
+
+public class JsonCodec<T>
+{
+	private final ObjectReader reader;
+	private final ObjectWriter writer;
+
+	public JsonCodec(ObjectMapper mapper, Class<T> type)
+	{
+		this.reader = mapper.readerFor(type).without(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+		this.writer = mapper.writerFor(type).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+
+	public T read(InputStream in) throws IOException
+	{
+		return reader.readValue(in);
+	}
+
+	public void write(T value, OutputStream out) throws IOException
+	{
+		writer.writeValue(out, value);
+	}
+
+	/**
+	 * Returns the UTF-8 JSON of the value, for a client that sends a request body from a buffer
+	 */
+	public byte[] writeBytes(T value) throws IOException
+	{
+		return writer.writeValueAsBytes(value);
+	}
+}
@@ -0,0 +1,246 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+
+/**
+ * The login and logout counters not yet written to the database (write-behind).
+ *
+ * Logins and logouts add to a pending delta per user instead of updating the account row
+ * in their own transaction; a flusher drains the deltas periodically and writes them in one
+ * batched transaction. The table is a ConcurrentHashMap, so concurrent users only contend
+ * when they hash to the same bin, and each delta is guarded by its own monitor.
+ *
+ * Accounts read from the database are merged with their pending delta, and with the delta
+ * a flush is writing until it commits, so callers see the counters as if they had been
+ * written through. At most one delta per user is being flushed at a time.
+ *
+ * The deltas of at most maxPending users are kept; when the table is full, a logout of a
+ * user not in it is refused (the caller writes it through) so that logouts of unknown
+ * userIDs can't grow the table without bound.
+ *
+ */
+
+public class LoginCounters
+{
+	private final ConcurrentHashMap<String, Delta> pending = new ConcurrentHashMap<String, Delta>();
+	// the drained deltas a flush is writing, until it commits (flushed) or fails (restore)
+	private final ConcurrentHashMap<String, Delta> flushing = new ConcurrentHashMap<String, Delta>();
+	private final int maxPending;
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong rowsFlushed = new AtomicLong();
+
+	public LoginCounters(int maxPending)
+	{
+		this.maxPending = maxPending;
+	}
+
+	public void recordLogin(String userID, long loginTime)
+	{
+		add(userID, 1, 0, loginTime, false);
+	}
+
+	/**
+	 * Returns false, without recording the logout, if the table is full and has no delta for the user
+	 */
+	public boolean recordLogout(String userID)
+	{
+		return add(userID, 0, 1, 0, true);
+	}
+
+	private boolean add(String userID, int logins, int logouts, long lastLogin, boolean bounded)
+	{
+		while (true)
+		{
+			Delta delta = pending.get(userID);
+			if (delta == null)
+			{
+				if (bounded && pending.size() >= maxPending) return false;
+				Delta newDelta = new Delta(userID);
+				delta = pending.putIfAbsent(userID, newDelta);
+				if (delta == null) delta = newDelta;
+			}
+			synchronized (delta)
+			{
+				// a drained delta has left the table; add to its replacement instead
+				if (delta.drained) continue;
+				delta.logins += logins;
+				delta.logouts += logouts;
+				delta.lastLogin = Math.max(delta.lastLogin, lastLogin);
+			}
+			recorded.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Adds the pending delta of the account's user, and the delta being flushed, to the counters
+	 * read from the database
+	 */
+	public AccountDataBean merge(AccountDataBean accountData)
+	{
+		if (accountData == null) return null;
+		Delta delta = pending.get(accountData.getProfileID());
+		if (delta != null) merge(accountData, delta);
+		Delta inFlight = flushing.get(accountData.getProfileID());
+		// the pending delta may have been drained into the flush meanwhile; count it once
+		if (inFlight != null && inFlight != delta) merge(accountData, inFlight);
+		return accountData;
+	}
+
+	private static void merge(AccountDataBean accountData, Delta delta)
+	{
+		synchronized (delta)
+		{
+			accountData.setLoginCount(accountData.getLoginCount() + delta.logins);
+			accountData.setLogoutCount(accountData.getLogoutCount() + delta.logouts);
+			if (delta.lastLogin > 0 && (accountData.getLastLogin() == null || accountData.getLastLogin().getTime() < delta.lastLogin))
+			{
+				accountData.setLastLogin(new Timestamp(delta.lastLogin));
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the pending deltas; the caller writes them and then calls flushed, or
+	 * restores them. Until then merge() still counts them. A user whose previous delta is still
+	 * being flushed keeps the new one for the next flush.
+	 */
+	public List<Delta> drain()
+	{
+		List<Delta> deltas = new ArrayList<Delta>();
+		for (Delta delta : pending.values())
+		{
+			synchronized (delta)
+			{
+				if (delta.drained) continue;
+				boolean empty = (delta.logins == 0 && delta.logouts == 0);
+				if (!empty && flushing.putIfAbsent(delta.userID, delta) != null) continue;
+				delta.drained = true;
+				pending.remove(delta.userID, delta);
+				if (!empty) deltas.add(delta);
+			}
+		}
+		return deltas;
+	}
+
+	/**
+	 * Puts back the deltas a failed flush could not write
+	 */
+	public void restore(List<Delta> deltas)
+	{
+		for (Delta delta : deltas)
+		{
+			add(delta.userID, delta.logins, delta.logouts, delta.lastLogin, false);
+			recorded.decrementAndGet();
+			flushing.remove(delta.userID, delta);
+		}
+	}
+
+	/**
+	 * Forgets the deltas a flush has committed
+	 */
+	void flushed(List<Delta> deltas)
+	{
+		for (Delta delta : deltas)
+		{
+			flushing.remove(delta.userID, delta);
+		}
+		flushes.incrementAndGet();
+		rowsFlushed.addAndGet(deltas.size());
+	}
+
+	/**
+	 * Drops every pending delta and every delta being flushed (e.g. when the accounts are deleted)
+	 */
+	public void clear()
+	{
+		for (Delta delta : pending.values())
+		{
+			synchronized (delta)
+			{
+				delta.drained = true;
+				pending.remove(delta.userID, delta);
+			}
+		}
+		flushing.clear();
+	}
+
+	/**
+	 * Returns the pending users, the recorded logins/logouts, the flushes and the rows they updated
+	 */
+	public Map<String, Long> getStats()
+	{
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("pendingUsers", (long) pending.size());
+		stats.put("flushingUsers", (long) flushing.size());
+		stats.put("recorded", recorded.get());
+		stats.put("flushes", flushes.get());
+		stats.put("rowsFlushed", rowsFlushed.get());
+		return stats;
+	}
+
+	/**
+	 * The logins and logouts of a user not yet written to the database
+	 */
+	public static class Delta
+	{
+		final String userID;
+		int logins = 0;
+		int logouts = 0;
+		long lastLogin = 0;
+		boolean drained = false;
+
+		Delta(String userID)
+		{
+			this.userID = userID;
+		}
+
+		public String getUserID()
+		{
+			return userID;
+		}
+
+		public int getLogins()
+		{
+			return logins;
+		}
+
+		public int getLogouts()
+		{
+			return logouts;
+		}
+
+		public long getLastLogin()
+		{
+			return lastLogin;
+		}
+	}
+}
@@ -20,6 +20,10 @@ package org.apache.geronimo.daytrader.javaee6.accounts.service;
 // DayTrader
 import org.apache.geronimo.daytrader.javaee6.accounts.utils.Log;
 
+// Java
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
 //Jackson Object Mapping
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -54,6 +58,9 @@ public class PortfoliosRemoteCallService extends BaseRemoteCallService
 		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false); // ignore properties that are not declared
 	}
 
+	// built once: the account data is streamed to and from the connection through this codec
+	private static final JsonCodec<AccountDataBean> accountDataCodec = new JsonCodec<AccountDataBean>(mapper, AccountDataBean.class);
+
 //  - Naming convention based service discovery 
 	  private static String portfoliosServiceRoute = System.getenv("DAYTRADER_PORTFOLIOS_SERVICE");	
 		
@@ -66,9 +73,19 @@ public class PortfoliosRemoteCallService extends BaseRemoteCallService
     {
    		String url = portfoliosServiceRoute + "/portfolios/" + userID;
    		Log.debug("PortfoliosRemoteCallService.getAccountData() - " + url);
-   		String responseEntity = invokeEndpoint(url, "GET", null); // Entity must be null for http method GET.
-   		AccountDataBean accountData = mapper.readValue(responseEntity,AccountDataBean.class);
-   		return accountData;
+   		InstrumentedDataSource.remoteCall(); // any connection this thread holds waits for the call
+   		long start = System.nanoTime();
+   		boolean success = false;
+   		try
+   		{
+   			AccountDataBean accountData = invokeEndpoint(url, "GET", null, accountDataCodec, accountDataCodec);
+   			success = true;
+   			return accountData;
+   		}
+   		finally
+   		{
+   			AccountsMetrics.portfoliosCall("getAccountData", start, success);
+   		}
     }
 	
    /**
@@ -81,10 +98,69 @@ public class PortfoliosRemoteCallService extends BaseRemoteCallService
     	// Construct the portfolio data from that given params
   	  	String url = portfoliosServiceRoute + "/portfolios";
     	Log.debug("PortfoliosRemoteCallService.getAccountData() - " + url);
-  		String accountDataInString = mapper.writeValueAsString(accountData);
-  		String responseEntity = invokeEndpoint(url, "POST", accountDataInString);
-  		accountData = mapper.readValue(responseEntity,AccountDataBean.class);
-  		return accountData;
+  		InstrumentedDataSource.remoteCall(); // any connection this thread holds waits for the call
+  		long start = System.nanoTime();
+  		boolean success = false;
+  		try
+  		{
+  			accountData = invokeEndpoint(url, "POST", accountData, accountDataCodec, accountDataCodec);
+  			success = true;
+  			return accountData;
+  		}
+  		finally
+  		{
+  			AccountsMetrics.portfoliosCall("register", start, success);
+  		}
     }    	
+
+   /**
+	*
+	* Non-blocking getAccountData(String): no thread waits for the response
+	*
+	*/
+    public CompletableFuture<AccountDataBean> getAccountDataAsync(String userID) 
+    {
+   		String url = portfoliosServiceRoute + "/portfolios/" + userID;
+   		Log.debug("PortfoliosRemoteCallService.getAccountDataAsync() - " + url);
+   		InstrumentedDataSource.remoteCall(); // any connection this thread holds waits for the call
+   		long start = System.nanoTime();
+   		return timed(invokeEndpointAsync(url, "GET", null, accountDataCodec, accountDataCodec), "getAccountData", start);
+    }
+
+   /**
+	*
+	* Non-blocking register(AccountDataBean): no thread waits for the response
+	*
+	*/
+    public CompletableFuture<AccountDataBean> registerAsync(AccountDataBean accountData) 
+    {
+  	  	String url = portfoliosServiceRoute + "/portfolios";
+    	Log.debug("PortfoliosRemoteCallService.registerAsync() - " + url);
+  		InstrumentedDataSource.remoteCall(); // any connection this thread holds waits for the call
+  		long start = System.nanoTime();
+  		return timed(invokeEndpointAsync(url, "POST", accountData, accountDataCodec, accountDataCodec), "register", start);
+    }
+
+    /*
+     * Time the call when it completes
+     */
+    private static CompletableFuture<AccountDataBean> timed(CompletableFuture<AccountDataBean> response, final String call, final long start)
+    {
+    	return response.whenComplete(new BiConsumer<AccountDataBean, Throwable>()
+    	{
+    		public void accept(AccountDataBean accountData, Throwable failure)
+    		{
+    			AccountsMetrics.portfoliosCall(call, start, failure == null);
+    		}
+    	});
+    }
+
+    /**
+     * The codec of the account data sent to and received from the portfolios
+     */
+    public static JsonCodec<AccountDataBean> getAccountDataCodec()
+    {
+    	return accountDataCodec;
+    }
 }
 
@@ -0,0 +1,223 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.utils.EnvSettings;
+
+/**
+ * A shared, thread-safe Jersey client per target route (scheme://host:port).
+ *
+ * Each client is backed by its own bounded pool of keep-alive connections so that
+ * consecutive calls to the same microservice reuse an established TCP/TLS connection
+ * instead of paying for a new handshake on every request. Idle connections are
+ * evicted in the background after the keep-alive period expires.
+ *
+ * The pool is configured through the environment:
+ *
+ * - DAYTRADER_REMOTE_CONNECT_TIMEOUT: connect timeout in milliseconds (default 5000)
+ * - DAYTRADER_REMOTE_READ_TIMEOUT: read timeout in milliseconds (default 30000)
+ * - DAYTRADER_REMOTE_POOL_MAX_PER_ROUTE: maximum connections per route (default 100)
+ * - DAYTRADER_REMOTE_KEEPALIVE: idle time in milliseconds before a connection is closed (default 60000)
+ *
+ */
+
+//Don't do any logging from the remote client pool unless you send it to its own logger;
+//it is shared with the integration tests through the base remote call service.
+
+public class RemoteClientPool
+{
+	private static final int connectTimeout = EnvSettings.getInt("DAYTRADER_REMOTE_CONNECT_TIMEOUT", 5000);
+	private static final int readTimeout = EnvSettings.getInt("DAYTRADER_REMOTE_READ_TIMEOUT", 30000);
+	private static final int maxPerRoute = EnvSettings.getInt("DAYTRADER_REMOTE_POOL_MAX_PER_ROUTE", 100);
+	private static final int keepAlive = EnvSettings.getInt("DAYTRADER_REMOTE_KEEPALIVE", 60000);
+
+	private static final ConcurrentMap<String, RemoteClientPool> pools = new ConcurrentHashMap<String, RemoteClientPool>();
+
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "daytrader-remote-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static
+	{
+		evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				for (RemoteClientPool pool : pools.values())
+				{
+					pool.evictIdleConnections();
+				}
+			}
+		}, keepAlive, Math.max(1000, keepAlive / 2), TimeUnit.MILLISECONDS);
+	}
+
+	private final String route;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final Client client;
+
+	private RemoteClientPool(String route)
+	{
+		this.route = route;
+
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				// honors the javax.net.ssl.* system properties (truststore) like the default client did
+				.register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(registry, null, null, null, keepAlive, TimeUnit.MILLISECONDS);
+		// the pool serves a single route, so its total is the bound per route
+		connectionManager.setMaxTotal(maxPerRoute);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		// re-validate connections that have been idle for a while before handing them out
+		connectionManager.setValidateAfterInactivity(2000);
+
+		ClientConfig config = new ClientConfig()
+				.connectorProvider(new ApacheConnectorProvider())
+				.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+				.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout)
+				.property(ClientProperties.READ_TIMEOUT, readTimeout);
+
+		client = ClientBuilder.newClient(config);
+	}
+
+	/**
+	 * Returns the shared pool for the route (scheme://host:port) of the given url
+	 */
+	public static RemoteClientPool forUrl(String url)
+	{
+		String route = getRoute(url);
+		RemoteClientPool pool = pools.get(route);
+		if (pool == null)
+		{
+			RemoteClientPool newPool = new RemoteClientPool(route);
+			pool = pools.putIfAbsent(route, newPool);
+			if (pool == null)
+			{
+				pool = newPool;
+				AccountsMetrics.bindRemoteClientPool(pool);
+			}
+			else
+			{
+				// lost the race; discard the pool that was created
+				newPool.close();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the pool statistics for every route keyed by route
+	 */
+	public static Map<String, Map<String, Integer>> getAllStats()
+	{
+		Map<String, Map<String, Integer>> allStats = new LinkedHashMap<String, Map<String, Integer>>();
+		for (RemoteClientPool pool : pools.values())
+		{
+			allStats.put(pool.getRoute(), pool.getStats());
+		}
+		return allStats;
+	}
+
+	/**
+	 * Closes every client and its connection pool
+	 */
+	public static void shutdown()
+	{
+		for (RemoteClientPool pool : pools.values())
+		{
+			pool.close();
+		}
+		pools.clear();
+	}
+
+	public String getRoute()
+	{
+		return route;
+	}
+
+	public Client getClient()
+	{
+		return client;
+	}
+
+	/**
+	 * Returns the leased (active), available (idle), pending (waiting) and max connections
+	 */
+	public Map<String, Integer> getStats()
+	{
+		PoolStats poolStats = connectionManager.getTotalStats();
+		Map<String, Integer> stats = new LinkedHashMap<String, Integer>();
+		stats.put("leased", poolStats.getLeased());
+		stats.put("available", poolStats.getAvailable());
+		stats.put("pending", poolStats.getPending());
+		stats.put("max", poolStats.getMax());
+		return stats;
+	}
+
+	private void evictIdleConnections()
+	{
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+	}
+
+	private void close()
+	{
+		client.close();
+		connectionManager.shutdown();
+	}
+
+	private static String getRoute(String url)
+	{
+		URI uri = URI.create(url);
+		return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+	}
+}
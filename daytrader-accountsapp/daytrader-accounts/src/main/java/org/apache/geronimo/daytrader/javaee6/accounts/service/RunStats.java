@@ -0,0 +1,171 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.core.beans.RunStatsDataBean;
+
+/**
+ * The accounts' run statistics kept in memory so resetTrade doesn't scan accountejb.
+ *
+ * The counters are seeded once from the database and then kept up to date by register,
+ * login and logout for the trade users and the new users (see UserClass). Each counter
+ * is a LongAdder, so the hot paths never contend on a single memory location.
+ *
+ * The hot paths keep counting while the database is scanned, so a seed doesn't overwrite
+ * the counters: mark() is taken before the scan and seed() adds the difference between the
+ * counted values and the mark, which keeps the increments made during the scan. An operation
+ * is counted once its transaction has committed, so one that commits after the mark but
+ * before the scan reads its row is counted twice; the seed runs at startup and after an
+ * import, when few users are active.
+ *
+ * A snapshot subtracts the sums it returns instead of resetting the counters, so an
+ * increment made while it is taken is counted in the next run rather than lost.
+ *
+ */
+
+public class RunStats
+{
+	private final LongAdder tradeUserCount = new LongAdder();
+	private final LongAdder newUserCount = new LongAdder();
+	private final LongAdder sumLoginCount = new LongAdder();
+	private final LongAdder sumLogoutCount = new LongAdder();
+
+	private volatile boolean seeded = false;
+
+	public boolean isSeeded()
+	{
+		return seeded;
+	}
+
+	/**
+	 * Returns the current counters, to be passed to seed() or the reset methods once the
+	 * database has been counted or updated
+	 */
+	public long[] mark()
+	{
+		return new long[] { tradeUserCount.sum(), newUserCount.sum(), sumLoginCount.sum(), sumLogoutCount.sum() };
+	}
+
+	/**
+	 * Sets the counters to the values counted in the database plus the increments made since the mark
+	 */
+	public void seed(long[] mark, long tradeUsers, long newUsers, long logins, long logouts)
+	{
+		tradeUserCount.add(tradeUsers - mark[0]);
+		newUserCount.add(newUsers - mark[1]);
+		sumLoginCount.add(logins - mark[2]);
+		sumLogoutCount.add(logouts - mark[3]);
+		seeded = true;
+	}
+
+	/**
+	 * The persisted login/logout counters were set to zero: keeps only the increments made since the mark
+	 */
+	public void persistedLoginsReset(long[] mark)
+	{
+		sumLoginCount.add(-mark[2]);
+		sumLogoutCount.add(-mark[3]);
+	}
+
+	/**
+	 * Every new user was deleted: keeps only the users registered since the mark
+	 */
+	public void newUsersPurged(long[] mark)
+	{
+		newUserCount.add(-mark[1]);
+	}
+
+	public void userRegistered(String userID)
+	{
+		int userClass = UserClass.of(userID);
+		if (userClass == UserClass.TRADE) tradeUserCount.increment();
+		else if (userClass == UserClass.NEW) newUserCount.increment();
+	}
+
+	/**
+	 * Counts the trade users inserted in bulk (by tradeBuildDB)
+	 */
+	public void tradeUsersRegistered(long count)
+	{
+		tradeUserCount.add(count);
+	}
+
+	public void login(String userID)
+	{
+		if (UserClass.of(userID) == UserClass.TRADE) sumLoginCount.increment();
+	}
+
+	public void logout(String userID)
+	{
+		if (UserClass.of(userID) == UserClass.TRADE) sumLogoutCount.increment();
+	}
+
+	/**
+	 * Returns the statistics of the run and starts a new run: the new users and the
+	 * login/logout sums go back to zero; the trade users remain.
+	 */
+	public RunStatsDataBean snapshotAndReset()
+	{
+		RunStatsDataBean runStatsData = new RunStatsDataBean();
+		runStatsData.setTradeUserCount((int) tradeUserCount.sum());
+		runStatsData.setNewUserCount((int) takeSum(newUserCount));
+		runStatsData.setSumLoginCount((int) takeSum(sumLoginCount));
+		runStatsData.setSumLogoutCount((int) takeSum(sumLogoutCount));
+		return runStatsData;
+	}
+
+	/*
+	 * Returns the sum and subtracts it; sumThenReset may drop the increments made while it
+	 * runs (on Java 8, it reads each cell and then sets it to zero)
+	 */
+	private static long takeSum(LongAdder adder)
+	{
+		long sum = adder.sum();
+		adder.add(-sum);
+		return sum;
+	}
+
+	/**
+	 * Seeds the counters from the database again the next time they are read (e.g. after an import)
+	 */
+	public void invalidate()
+	{
+		seeded = false;
+	}
+
+	/**
+	 * Sets every counter to zero (e.g. when the accounts are deleted)
+	 */
+	public void clear()
+	{
+		reset(tradeUserCount, 0);
+		reset(newUserCount, 0);
+		reset(sumLoginCount, 0);
+		reset(sumLogoutCount, 0);
+		seeded = true;
+	}
+
+	private static void reset(LongAdder adder, long value)
+	{
+		adder.reset();
+		adder.add(value);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A prepared statement that times each execution (see AccountsMetrics#statement and
+ * InstrumentedDataSource#sqlStats).
+ *
+ * The statements are prepared through the pool's connection, so the pool sees every one of
+ * them: it closes those a caller left open when the connection is returned, and HikariCP
+ * rolls back a connection returned in the middle of a transaction. Reusing the statements
+ * across checkouts is the pool's job (DBCP's poolPreparedStatements) or the driver's (e.g.
+ * MySQL's cachePrepStmts under HikariCP), configured by AccountsApplication with
+ * DAYTRADER_STATEMENT_CACHE_SIZE statements per connection.
+ *
+ */
+
+public class TimedStatement implements InvocationHandler
+{
+	private final PreparedStatement statement;
+	private final AccountsMetrics.Outcomes timers;
+	private final InstrumentedDataSource.SqlStats sqlStats;
+
+	private TimedStatement(PreparedStatement statement, AccountsMetrics.Outcomes timers, InstrumentedDataSource.SqlStats sqlStats)
+	{
+		this.statement = statement;
+		this.timers = timers;
+		this.sqlStats = sqlStats;
+	}
+
+	/**
+	 * Prepares the sql on the connection; the statement is only proxied when its executions are timed
+	 */
+	public static PreparedStatement prepare(Connection conn, String sql) throws SQLException
+	{
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		AccountsMetrics.Outcomes timers = AccountsMetrics.statement(sql);
+		InstrumentedDataSource.SqlStats sqlStats = InstrumentedDataSource.sqlStats(sql);
+		if (timers == null && sqlStats == null) return stmt;
+		return (PreparedStatement) Proxy.newProxyInstance(TimedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new TimedStatement(stmt, timers, sqlStats));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if (!method.getName().startsWith("execute"))
+		{
+			return invoke(method, args);
+		}
+		long start = System.nanoTime();
+		boolean success = false;
+		try
+		{
+			Object result = invoke(method, args);
+			success = true;
+			return result;
+		}
+		finally
+		{
+			if (timers != null) timers.record(start, success);
+			if (sqlStats != null) sqlStats.record(start, success);
+		}
+	}
+
+	private Object invoke(Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(statement, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+}
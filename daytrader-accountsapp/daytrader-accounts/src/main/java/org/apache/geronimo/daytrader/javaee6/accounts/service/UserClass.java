@@ -0,0 +1,52 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+/**
+ * The class of a user, persisted in the USERCLASS column of ACCOUNTEJB so the run
+ * statistics and the purge of the new users filter on an indexed (or partitioned)
+ * small integer instead of a prefix scan of the user id.
+ *
+ */
+
+public final class UserClass
+{
+	/** Any other user */
+	public static final int OTHER = 0;
+
+	/** The users created by tradeBuildDB (uid:0, uid:1, ...) */
+	public static final int TRADE = 1;
+
+	/** The users registered during a run (ru:...) and purged by resetTrade */
+	public static final int NEW = 2;
+
+	private UserClass()
+	{
+	}
+
+	/**
+	 * Returns the class of the user with the given id
+	 */
+	public static int of(String userID)
+	{
+		if (userID == null) return OTHER;
+		if (userID.startsWith("uid:")) return TRADE;
+		if (userID.startsWith("ru:")) return NEW;
+		return OTHER;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.utils;
+
+/**
+ * The DAYTRADER_* settings read from the environment.
+ *
+ */
+
+public final class EnvSettings
+{
+	private EnvSettings()
+	{
+	}
+
+	/**
+	 * Returns the integer value of the environment variable, or the default value if it is
+	 * not set; an invalid value is logged and ignored
+	 */
+	public static int getInt(String name, int defaultValue)
+	{
+		String value = System.getenv(name);
+		if (value == null || value.trim().isEmpty()) return defaultValue;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			Log.error("EnvSettings:getInt() - ignored invalid value " + value + " for " + name);
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// The parser of the files imported by AccountsService#tradeImportDB; no database is needed
+
+public class AccountsFileTest {
+
+	private File file;
+
+	@After
+	public void deleteFile() throws IOException
+	{
+		if (file != null) Files.deleteIfExists(file.toPath());
+	}
+
+	@Test
+	public void readsTheCSVColumnsByHeader() throws IOException
+	{
+		AccountsFile accounts = open("csv", null,
+				"email,\"userid\",ignored,fullname\n"
+				+ "a@x.com,uid:1,zzz,Ann\n"
+				+ "b@x.com,uid:2,,\n");
+		try
+		{
+			AccountsFile.Records records = readAll(accounts);
+			assertTrue(records.next());
+			assertEquals("uid:1", records.get(AccountsFile.USERID));
+			assertEquals("a@x.com", records.get(AccountsFile.EMAIL));
+			assertEquals("Ann", records.get(AccountsFile.FULLNAME));
+			assertNull(records.get(AccountsFile.PASSWD));
+			assertTrue(records.next());
+			assertEquals("uid:2", records.get(AccountsFile.USERID));
+			assertNull(records.get(AccountsFile.FULLNAME));
+			assertFalse(records.next());
+		}
+		finally
+		{
+			accounts.close();
+		}
+	}
+
+	@Test
+	public void readsQuotedFieldsCRLFAndBlankLines() throws IOException
+	{
+		AccountsFile accounts = open("csv", null,
+				"userid,address\r\n"
+				+ "uid:1,\"1 Main St, Apt \"\"B\"\"\"\r\n"
+				+ "\r\n"
+				+ "\n"
+				+ "uid:2,\"\"\r\n");
+		try
+		{
+			AccountsFile.Records records = readAll(accounts);
+			assertTrue(records.next());
+			assertEquals("uid:1", records.get(AccountsFile.USERID));
+			assertEquals("1 Main St, Apt \"B\"", records.get(AccountsFile.ADDRESS));
+			assertTrue(records.next());
+			assertEquals("uid:2", records.get(AccountsFile.USERID));
+			assertNull(records.get(AccountsFile.ADDRESS));
+			assertFalse(records.next());
+		}
+		finally
+		{
+			accounts.close();
+		}
+	}
+
+	@Test
+	public void readsTheFixedWidthLayout() throws IOException
+	{
+		AccountsFile accounts = open("fixed", "userid:8,skip:3,fullname:10",
+				"uid:1   xxxAnn Smith \n"
+				+ "uid:22  xxxBob\n");
+		try
+		{
+			AccountsFile.Records records = readAll(accounts);
+			assertTrue(records.next());
+			assertEquals("uid:1", records.get(AccountsFile.USERID));
+			assertEquals("Ann Smith", records.get(AccountsFile.FULLNAME));
+			assertTrue(records.next());
+			assertEquals("uid:22", records.get(AccountsFile.USERID));
+			assertEquals("Bob", records.get(AccountsFile.FULLNAME));
+			assertFalse(records.next());
+		}
+		finally
+		{
+			accounts.close();
+		}
+	}
+
+	@Test
+	public void splitsAtLineBreaks() throws IOException
+	{
+		StringBuilder content = new StringBuilder("userid,fullname\n");
+		for (int i = 0; i < 100; i++)
+		{
+			content.append("uid:").append(i).append(",name ").append(i).append('\n');
+		}
+		AccountsFile accounts = open("csv", null, content.toString());
+		try
+		{
+			List<long[]> chunks = accounts.split(0, 7);
+			assertEquals(7, chunks.size());
+			assertEquals("userid,fullname\n".length(), chunks.get(0)[0]);
+			assertEquals(accounts.getSize(), chunks.get(chunks.size() - 1)[1]);
+			assertEquals(userIDs(0, 100), readUserIDs(accounts, chunks));
+
+			// the rows of a resumed range, e.g. from the start of uid:50 up to that of uid:80
+			long from = content.indexOf("uid:50,");
+			long to = content.indexOf("uid:80,");
+			chunks = accounts.split(from, to, 3);
+			assertEquals(from, chunks.get(0)[0]);
+			assertEquals(to, chunks.get(chunks.size() - 1)[1]);
+			assertEquals(userIDs(50, 80), readUserIDs(accounts, chunks));
+		}
+		finally
+		{
+			accounts.close();
+		}
+	}
+
+	@Test
+	public void rejectsALineBreakInAQuotedField() throws IOException
+	{
+		String content = "userid,address\n" + "uid:1,\"1 Main St\n" + "Apt B\",x\n";
+		AccountsFile accounts = open("csv", null, content);
+		try
+		{
+			assertInvalid(readAll(accounts));
+			// the worker whose chunk starts with the rest of the record
+			long rest = content.indexOf("Apt B");
+			assertInvalid(accounts.read(rest, accounts.getSize()));
+		}
+		finally
+		{
+			accounts.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresAUserIDColumn() throws IOException
+	{
+		open("csv", null, "fullname,email\nAnn,a@x.com\n");
+	}
+
+	private AccountsFile open(String format, String layout, String content) throws IOException
+	{
+		file = File.createTempFile("accounts", "." + format);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return AccountsFile.open(file.getPath(), format, layout);
+	}
+
+	// the records after the header
+	private static AccountsFile.Records readAll(AccountsFile accounts) throws IOException
+	{
+		long[] chunk = accounts.split(0, 1).get(0);
+		return accounts.read(chunk[0], chunk[1]);
+	}
+
+	private static void assertInvalid(AccountsFile.Records records)
+	{
+		try
+		{
+			while (records.next());
+			fail("A quoted field with a line break was read");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage().contains("line break"));
+		}
+	}
+
+	private static List<String> readUserIDs(AccountsFile accounts, List<long[]> chunks) throws IOException
+	{
+		List<String> userIDs = new ArrayList<String>();
+		for (long[] chunk : chunks)
+		{
+			AccountsFile.Records records = accounts.read(chunk[0], chunk[1]);
+			while (records.next()) userIDs.add(records.get(AccountsFile.USERID));
+		}
+		return userIDs;
+	}
+
+	private static List<String> userIDs(int from, int to)
+	{
+		List<String> userIDs = new ArrayList<String>();
+		for (int i = from; i < to; i++) userIDs.add("uid:" + i);
+		return userIDs;
+	}
+}
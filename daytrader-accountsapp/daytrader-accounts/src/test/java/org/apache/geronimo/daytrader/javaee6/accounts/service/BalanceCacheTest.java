@@ -0,0 +1,152 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+
+// The versioned puts of the balance cache against concurrent invalidations; no Portfolios are needed
+
+public class BalanceCacheTest {
+
+	private static final long TTL = 60000;
+	private static final int UPDATES = 50000;
+	private static final int READERS = 2;
+
+	@Test
+	public void neverServesABalanceReadBeforeAnInvalidation() throws Exception
+	{
+		final BalanceCache cache = new BalanceCache(10, TTL, TTL);
+		// the balance the Portfolios keep, and the last balance whose update has invalidated the cache
+		final AtomicLong portfolios = new AtomicLong();
+		final AtomicLong invalidated = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong stale = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		// the balance updates of the user, each followed by its invalidation
+		Thread updater = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					for (long balance = 1; balance <= UPDATES; balance++)
+					{
+						portfolios.set(balance);
+						cache.invalidate("uid:0");
+						invalidated.set(balance);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		});
+
+		// the reads through the cache: a miss reads the Portfolios and puts the balance
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < READERS; r++)
+		{
+			readers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						while (!done.get())
+						{
+							long floor = invalidated.get();
+							AccountDataBean cached = cache.get("uid:0", -1);
+							if (cached != null)
+							{
+								if (cached.getBalance().longValue() < floor) stale.incrementAndGet();
+								continue;
+							}
+							long version = cache.getVersion("uid:0");
+							AccountDataBean portfolioData = balance(portfolios.get());
+							// the Portfolios call, during which the balance may be updated
+							Thread.yield();
+							cache.put("uid:0", portfolioData, version);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}));
+		}
+
+		for (Thread t : readers) t.start();
+		updater.start();
+		start.countDown();
+		updater.join();
+		done.set(true);
+		for (Thread t : readers) t.join();
+		if (failure.get() != null) throw new AssertionError(failure.get());
+
+		assertEquals("balances served after their invalidation", 0, stale.get());
+		assertTrue("no put was dropped", cache.getStats().get("droppedPuts") > 0);
+	}
+
+	@Test
+	public void dropsABalanceReadBeforeAnInvalidation()
+	{
+		BalanceCache cache = new BalanceCache(10, TTL, TTL);
+		long version = cache.getVersion("uid:0");
+		cache.invalidate("uid:0");
+		cache.put("uid:0", balance(1), version);
+		assertNull(cache.get("uid:0", -1));
+		assertEquals(Long.valueOf(1), cache.getStats().get("droppedPuts"));
+
+		cache.put("uid:0", balance(2), cache.getVersion("uid:0"));
+		AccountDataBean cached = cache.get("uid:0", -1);
+		assertNotNull(cached);
+		assertEquals(2, cached.getBalance().longValue());
+	}
+
+	@Test
+	public void evictsDownToItsSize()
+	{
+		BalanceCache cache = new BalanceCache(10, TTL, TTL);
+		for (int i = 0; i < 100; i++)
+		{
+			cache.put("uid:" + i, balance(i), cache.getVersion("uid:" + i));
+		}
+		assertEquals(Long.valueOf(10), cache.getStats().get("size"));
+		assertEquals(Long.valueOf(90), cache.getStats().get("evictions"));
+	}
+
+	private static AccountDataBean balance(long balance)
+	{
+		AccountDataBean portfolioData = new AccountDataBean();
+		portfolioData.setBalance(BigDecimal.valueOf(balance));
+		portfolioData.setOpenBalance(BigDecimal.valueOf(balance));
+		return portfolioData;
+	}
+}
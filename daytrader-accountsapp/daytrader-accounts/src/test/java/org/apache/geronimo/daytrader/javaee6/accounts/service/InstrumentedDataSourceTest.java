@@ -0,0 +1,116 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+// The leak detection of the connections; the pool is a stub, no database is needed
+
+public class InstrumentedDataSourceTest {
+
+	private static final long LEAK_THRESHOLD_MILLIS = 1;
+
+	private final AtomicInteger open = new AtomicInteger();
+	private final DataSource pool = stubPool();
+	private final InstrumentedDataSource datasource = new InstrumentedDataSource(pool, LEAK_THRESHOLD_MILLIS);
+
+	@After
+	public void shutdown()
+	{
+		datasource.shutdown();
+	}
+
+	@Test
+	public void anIdleServiceReportsNoLeaks() throws Exception
+	{
+		// the key generator holds its connection for good; the calls return theirs
+		Connection keyGenerator = InstrumentedDataSource.getPool(datasource).getConnection();
+		for (int i = 0; i < 10; i++)
+		{
+			datasource.getConnection().close();
+		}
+		Thread.sleep(10 * LEAK_THRESHOLD_MILLIS);
+		datasource.detectLeaks();
+
+		Map<String, Object> stats = datasource.getStats(0);
+		assertEquals(0L, stats.get("leaksDetected"));
+		assertEquals(0, stats.get("held"));
+		assertEquals(10L, stats.get("holds"));
+		assertEquals(1, open.get());
+		keyGenerator.close();
+	}
+
+	@Test
+	public void reportsAConnectionHeldPastTheThreshold() throws Exception
+	{
+		Connection conn = datasource.getConnection();
+		Thread.sleep(10 * LEAK_THRESHOLD_MILLIS);
+		datasource.detectLeaks();
+		// reported once
+		datasource.detectLeaks();
+		assertEquals(1L, datasource.getStats(0).get("leaksDetected"));
+		assertEquals(1, datasource.getStats(0).get("held"));
+
+		conn.close();
+		assertEquals(0, datasource.getStats(0).get("held"));
+		assertEquals(0, open.get());
+	}
+
+	@Test
+	public void thePoolOfAnUndecoratedDataSourceIsItself()
+	{
+		assertSame(pool, InstrumentedDataSource.getPool(pool));
+		assertSame(pool, InstrumentedDataSource.getPool(datasource));
+	}
+
+	// hands out connections that only count whether they are open
+	private DataSource stubPool()
+	{
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+				new InvocationHandler()
+				{
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						if (!"getConnection".equals(method.getName())) return null;
+						open.incrementAndGet();
+						return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+								new InvocationHandler()
+								{
+									public Object invoke(Object proxy, Method method, Object[] args)
+									{
+										if ("close".equals(method.getName())) open.decrementAndGet();
+										return null;
+									}
+								});
+					}
+				});
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+
+// The write-behind login counters, flushed to a simulated database; no database is needed
+
+public class LoginCountersTest {
+
+	private static final int USERS = 4;
+	private static final int WORKERS = 4;
+	private static final int OPERATIONS = 50000;
+
+	@Test
+	public void concurrentFlushesLoseNoIncrement() throws Exception
+	{
+		// fewer slots than users, so that some logouts are refused and written through
+		final LoginCounters counters = new LoginCounters(USERS / 2);
+		final Database db = new Database();
+		final AtomicLongArray logins = new AtomicLongArray(USERS);
+		final AtomicLongArray logouts = new AtomicLongArray(USERS);
+		final AtomicLong clock = new AtomicLong();
+		final AtomicLong failedFlushes = new AtomicLong();
+		final AtomicLong writtenThrough = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int w = 0; w < WORKERS; w++)
+		{
+			final long seed = w;
+			workers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						Random random = new Random(seed);
+						for (int i = 0; i < OPERATIONS; i++)
+						{
+							int user = random.nextInt(USERS);
+							if (random.nextBoolean())
+							{
+								counters.recordLogin(userID(user), clock.incrementAndGet());
+								logins.incrementAndGet(user);
+							}
+							else
+							{
+								if (!counters.recordLogout(userID(user)))
+								{
+									db.add(userID(user), 0, 1, 0);
+									writtenThrough.incrementAndGet();
+								}
+								logouts.incrementAndGet(user);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}));
+		}
+
+		// two flushers, as the periodic flush can run beside the one of a reset; every third flush fails
+		List<Thread> flushers = new ArrayList<Thread>();
+		for (int f = 0; f < 2; f++)
+		{
+			flushers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						int flush = 0;
+						while (!done.get())
+						{
+							List<LoginCounters.Delta> deltas = counters.drain();
+							if (++flush % 3 == 0)
+							{
+								counters.restore(deltas);
+								failedFlushes.incrementAndGet();
+							}
+							else
+							{
+								db.write(deltas);
+								counters.flushed(deltas);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}));
+		}
+
+		for (Thread t : workers) t.start();
+		for (Thread t : flushers) t.start();
+		start.countDown();
+		for (Thread t : workers) t.join();
+		done.set(true);
+		for (Thread t : flushers) t.join();
+		if (failure.get() != null) throw new AssertionError(failure.get());
+
+		// the last flush
+		List<LoginCounters.Delta> deltas = counters.drain();
+		db.write(deltas);
+		counters.flushed(deltas);
+
+		assertTrue("no flush failed", failedFlushes.get() > 0);
+		assertTrue("no logout was written through", writtenThrough.get() > 0);
+		for (int user = 0; user < USERS; user++)
+		{
+			AccountDataBean accountData = db.read(userID(user));
+			assertEquals(userID(user), logins.get(user), accountData.getLoginCount());
+			assertEquals(userID(user), logouts.get(user), accountData.getLogoutCount());
+			// nothing is left to merge, so the counters aren't counted twice
+			counters.merge(accountData);
+			assertEquals(userID(user), logins.get(user), accountData.getLoginCount());
+			assertEquals(userID(user), logouts.get(user), accountData.getLogoutCount());
+		}
+		assertEquals(clock.get(), db.lastLogin());
+		assertEquals(Long.valueOf(0), counters.getStats().get("pendingUsers"));
+		assertEquals(Long.valueOf(0), counters.getStats().get("flushingUsers"));
+	}
+
+	@Test
+	public void mergeCountsTheDeltaBeingFlushedOnce()
+	{
+		LoginCounters counters = new LoginCounters(USERS);
+		counters.recordLogin("uid:0", 1);
+		counters.recordLogout("uid:0");
+		List<LoginCounters.Delta> deltas = counters.drain();
+		counters.recordLogin("uid:0", 2);
+
+		AccountDataBean accountData = counters.merge(account("uid:0"));
+		assertEquals(2, accountData.getLoginCount());
+		assertEquals(1, accountData.getLogoutCount());
+		assertEquals(2L, accountData.getLastLogin().getTime());
+
+		// a failed flush puts its delta back with the new one
+		counters.restore(deltas);
+		accountData = counters.merge(account("uid:0"));
+		assertEquals(2, accountData.getLoginCount());
+		assertEquals(1, accountData.getLogoutCount());
+		assertEquals(Long.valueOf(0), counters.getStats().get("flushingUsers"));
+	}
+
+	@Test
+	public void aUserStillFlushingKeepsItsNewDelta()
+	{
+		LoginCounters counters = new LoginCounters(USERS);
+		counters.recordLogin("uid:0", 1);
+		List<LoginCounters.Delta> first = counters.drain();
+		counters.recordLogin("uid:0", 2);
+		assertTrue(counters.drain().isEmpty());
+
+		counters.flushed(first);
+		List<LoginCounters.Delta> second = counters.drain();
+		assertEquals(1, second.size());
+		assertEquals(1, second.get(0).getLogins());
+		assertEquals(2L, second.get(0).getLastLogin());
+	}
+
+	@Test
+	public void refusesALogoutOfAnUnknownUserWhenFull()
+	{
+		LoginCounters counters = new LoginCounters(1);
+		counters.recordLogin("uid:0", 1);
+		assertFalse(counters.recordLogout("uid:1"));
+		assertTrue(counters.recordLogout("uid:0"));
+		assertEquals(Long.valueOf(2), counters.getStats().get("recorded"));
+	}
+
+	private static String userID(int user)
+	{
+		return "uid:" + user;
+	}
+
+	private static AccountDataBean account(String userID)
+	{
+		AccountDataBean accountData = new AccountDataBean();
+		accountData.setProfileID(userID);
+		return accountData;
+	}
+
+	/*
+	 * The login counters of the account rows; each write is one transaction
+	 */
+	private static class Database
+	{
+		private final long[] logins = new long[USERS];
+		private final long[] logouts = new long[USERS];
+		private long lastLogin = 0;
+
+		synchronized void add(String userID, int loginCount, int logoutCount, long loginTime)
+		{
+			int user = Integer.parseInt(userID.substring("uid:".length()));
+			logins[user] += loginCount;
+			logouts[user] += logoutCount;
+			lastLogin = Math.max(lastLogin, loginTime);
+		}
+
+		synchronized void write(List<LoginCounters.Delta> deltas)
+		{
+			for (LoginCounters.Delta delta : deltas)
+			{
+				add(delta.getUserID(), delta.getLogins(), delta.getLogouts(), delta.getLastLogin());
+			}
+		}
+
+		synchronized AccountDataBean read(String userID)
+		{
+			int user = Integer.parseInt(userID.substring("uid:".length()));
+			AccountDataBean accountData = account(userID);
+			accountData.setLoginCount((int) logins[user]);
+			accountData.setLogoutCount((int) logouts[user]);
+			accountData.setLastLogin(new Timestamp(lastLogin));
+			return accountData;
+		}
+
+		synchronized long lastLogin()
+		{
+			return lastLogin;
+		}
+	}
+}
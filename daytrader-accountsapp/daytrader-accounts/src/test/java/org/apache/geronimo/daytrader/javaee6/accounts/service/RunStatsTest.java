@@ -0,0 +1,166 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.core.beans.RunStatsDataBean;
+
+// The in-memory run statistics while they are seeded, reset and snapshot; no database is needed
+
+public class RunStatsTest {
+
+	private static final int WORKERS = 4;
+	private static final int OPERATIONS = 50000;
+	private static final long TOTAL = (long) WORKERS * OPERATIONS;
+
+	@Test
+	public void aSeedKeepsTheIncrementsMadeDuringTheScan() throws Exception
+	{
+		final RunStats runStats = new RunStats();
+		final AtomicReference<long[]> mark = new AtomicReference<long[]>();
+		Runnable seed = new Runnable() {
+			public void run() {
+				mark.set(runStats.mark());
+				// the scan counts the rows of the database plus those of the operations counted
+				// before the mark; the others commit after it
+				for (int i = 0; i < 100; i++) Thread.yield();
+				long[] counted = mark.get();
+				runStats.seed(counted, 100 + counted[0], 10 + counted[1], 1000 + counted[2], 900 + counted[3]);
+			}
+		};
+		runConcurrently(runStats, seed, null);
+
+		assertTrue(runStats.isSeeded());
+		RunStatsDataBean runStatsData = runStats.snapshotAndReset();
+		assertEquals(100, runStatsData.getTradeUserCount());
+		assertEquals(10 + TOTAL, runStatsData.getNewUserCount());
+		assertEquals(1000 + TOTAL, runStatsData.getSumLoginCount());
+		assertEquals(900 + TOTAL, runStatsData.getSumLogoutCount());
+	}
+
+	@Test
+	public void aResetKeepsTheIncrementsMadeSinceTheMark() throws Exception
+	{
+		final RunStats runStats = new RunStats();
+		final AtomicReference<long[]> mark = new AtomicReference<long[]>();
+		Runnable reset = new Runnable() {
+			public void run() {
+				mark.set(runStats.mark());
+				// the update of the counters and the purge of the new users
+				for (int i = 0; i < 100; i++) Thread.yield();
+				runStats.persistedLoginsReset(mark.get());
+				runStats.newUsersPurged(mark.get());
+			}
+		};
+		runConcurrently(runStats, reset, null);
+
+		RunStatsDataBean runStatsData = runStats.snapshotAndReset();
+		assertEquals(TOTAL - mark.get()[1], runStatsData.getNewUserCount());
+		assertEquals(TOTAL - mark.get()[2], runStatsData.getSumLoginCount());
+		assertEquals(TOTAL - mark.get()[3], runStatsData.getSumLogoutCount());
+	}
+
+	@Test
+	public void concurrentSnapshotsCountEachIncrementOnce() throws Exception
+	{
+		final RunStats runStats = new RunStats();
+		final long[] counted = new long[3];
+		Runnable snapshot = new Runnable() {
+			public void run() {
+				RunStatsDataBean runStatsData = runStats.snapshotAndReset();
+				counted[0] += runStatsData.getNewUserCount();
+				counted[1] += runStatsData.getSumLoginCount();
+				counted[2] += runStatsData.getSumLogoutCount();
+			}
+		};
+		runConcurrently(runStats, snapshot, snapshot);
+
+		// the increments made after the last snapshot of the run
+		snapshot.run();
+		assertEquals(TOTAL, counted[0]);
+		assertEquals(TOTAL, counted[1]);
+		assertEquals(TOTAL, counted[2]);
+	}
+
+	/*
+	 * Registers, logs in and logs out users on a few threads while another runs the task once
+	 * and then repeats the loop task (if any) until they are done
+	 */
+	private static void runConcurrently(final RunStats runStats, final Runnable task, final Runnable loop) throws Exception
+	{
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int w = 0; w < WORKERS; w++)
+		{
+			final int worker = w;
+			workers.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < OPERATIONS; i++)
+						{
+							runStats.userRegistered("ru:" + worker + "-" + i);
+							runStats.login("uid:" + i);
+							runStats.logout("uid:" + i);
+							// not counted
+							runStats.login("other:" + i);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}));
+		}
+
+		Thread runner = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					// let the workers start counting first
+					Thread.yield();
+					task.run();
+					while (loop != null && !done.get()) loop.run();
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		});
+
+		for (Thread t : workers) t.start();
+		runner.start();
+		start.countDown();
+		for (Thread t : workers) t.join();
+		done.set(true);
+		runner.join();
+		if (failure.get() != null) throw new AssertionError(failure.get());
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.AccountsService;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountProfileDataBean;
+
+/**
+ * The throughput of the AccountsService operations behind the hot REST endpoints.
+ *
+ * Every invocation picks a random trade user, so concurrent threads contend on the
+ * database like the DayTrader scenario does. Run it through BenchmarkRunner to sweep the
+ * thread counts, or with the usual JMH options (-t threads, -p users=...).
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AccountsServiceBenchmark
+{
+	@Param("1000")
+	public int users;
+
+	private AccountsService accountsService;
+
+	private final AtomicInteger newUsers = new AtomicInteger();
+
+	@Setup
+	public void setup() throws Exception
+	{
+		accountsService = BenchmarkEnvironment.start(users);
+	}
+
+	@Benchmark
+	public AccountDataBean login() throws Exception
+	{
+		return accountsService.login(rndUserID(), BenchmarkEnvironment.PASSWORD);
+	}
+
+	@Benchmark
+	public AccountDataBean getAccountData() throws Exception
+	{
+		return accountsService.getAccountData(rndUserID());
+	}
+
+	@Benchmark
+	public AccountProfileDataBean getAccountProfileData() throws Exception
+	{
+		return accountsService.getAccountProfileData(rndUserID());
+	}
+
+	@Benchmark
+	public AccountProfileDataBean updateAccountProfile() throws Exception
+	{
+		String userID = rndUserID();
+		// keep the password so the other benchmarks can still login
+		AccountProfileDataBean profileData = new AccountProfileDataBean(userID, BenchmarkEnvironment.PASSWORD,
+				"Full Name " + userID, "Address " + userID, userID + "@example.com", "1234-5678-9012-3456");
+		return accountsService.updateAccountProfile(profileData);
+	}
+
+	@Benchmark
+	public AccountDataBean register() throws Exception
+	{
+		String userID = "ru:bench" + newUsers.incrementAndGet();
+		return accountsService.register(userID, BenchmarkEnvironment.PASSWORD, "Full Name " + userID,
+				"Address " + userID, userID + "@example.com", "1234-5678-9012-3456", new BigDecimal("10000.00"));
+	}
+
+	private String rndUserID()
+	{
+		return "uid:" + ThreadLocalRandom.current().nextInt(users);
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A minimal JNDI provider so AccountsService can look up its datasource outside of Tomcat.
+ *
+ * Only lookup() of the names bound with bind() is supported.
+ *
+ */
+
+public class BenchmarkContextFactory implements InitialContextFactory
+{
+	private static final Map<String, Object> bindings = new ConcurrentHashMap<String, Object>();
+
+	public static void bind(String name, Object value)
+	{
+		bindings.put(name, value);
+	}
+
+	public Context getInitialContext(Hashtable<?, ?> environment)
+	{
+		return (Context) Proxy.newProxyInstance(BenchmarkContextFactory.class.getClassLoader(),
+				new Class<?>[] { Context.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				String name = method.getName();
+				if ("lookup".equals(name))
+				{
+					Object value = bindings.get(args[0].toString());
+					if (value == null) throw new NameNotFoundException(args[0].toString());
+					return value;
+				}
+				if ("close".equals(name)) return null;
+				if ("getEnvironment".equals(name)) return new Hashtable<Object, Object>();
+				if ("toString".equals(name)) return "BenchmarkContext" + bindings.keySet();
+				if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+				if ("equals".equals(name)) return proxy == args[0];
+				throw new OperationNotSupportedException("BenchmarkContext does not support " + name);
+			}
+		});
+	}
+}
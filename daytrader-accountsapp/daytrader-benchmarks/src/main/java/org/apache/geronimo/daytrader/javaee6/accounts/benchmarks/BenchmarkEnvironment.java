@@ -0,0 +1,124 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+
+import javax.naming.Context;
+import javax.sql.DataSource;
+
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.AccountsService;
+import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
+
+/**
+ * Sets up an AccountsService on an embedded (in-memory) Derby database, pooled like the
+ * accounts datasource in AccountsApplication, with the portfolios replaced by PortfoliosStub.
+ * The system property daytrader.benchmarks.pool=hikari pools the connections with HikariCP
+ * instead of DBCP, like DAYTRADER_DATABASE_POOL does for the application.
+ *
+ * Each JMH fork is a new JVM, so every fork starts from an empty database.
+ *
+ */
+
+public class BenchmarkEnvironment
+{
+	public static final String DATABASE_URL = "jdbc:derby:memory:daytrader-benchmarks;create=true";
+
+	/** The password tradeBuildDB gives every user */
+	public static final String PASSWORD = "xxx";
+
+	private static DataSource datasource = null;
+	private static AccountsService accountsService = null;
+
+	/**
+	 * Returns the accounts service with a database of the given number of trade users
+	 */
+	public static synchronized AccountsService start(int users) throws Exception
+	{
+		if (accountsService == null)
+		{
+			datasource = createDataSource(System.getProperty("daytrader.benchmarks.pool", "dbcp"), 100, 10);
+
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, BenchmarkContextFactory.class.getName());
+			BenchmarkContextFactory.bind(TradeConfig.ACCOUNTS_DATASOURCE, datasource);
+
+			// the portfolios are called through a static field of the service
+			Field portfoliosService = AccountsService.class.getDeclaredField("portfoliosService");
+			portfoliosService.setAccessible(true);
+			portfoliosService.set(null, new PortfoliosStub());
+
+			accountsService = new AccountsService();
+			accountsService.recreateDBTables();
+		}
+		accountsService.tradeBuildDB(users, 0);
+		TradeConfig.setMAX_USERS(users);
+		return accountsService;
+	}
+
+	/**
+	 * Returns a pool (dbcp or hikari) of the benchmark database, sized and validated like the
+	 * accounts datasource with the default DAYTRADER_DATABASE_POOL_* settings
+	 */
+	public static DataSource createDataSource(String pool, int maxSize, int minIdle)
+	{
+		if ("hikari".equalsIgnoreCase(pool))
+		{
+			HikariConfig config = new HikariConfig();
+			config.setPoolName("benchmarks");
+			config.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+			config.setJdbcUrl(DATABASE_URL);
+			config.setMaximumPoolSize(maxSize);
+			config.setMinimumIdle(minIdle);
+			config.setConnectionTimeout(10000);
+			config.setMaxLifetime(1800000);
+			config.setValidationTimeout(3000);
+			return new HikariDataSource(config);
+		}
+		BasicDataSource basicDataSource = new BasicDataSource();
+		basicDataSource.setDriverClassName("org.apache.derby.jdbc.EmbeddedDriver");
+		basicDataSource.setUrl(DATABASE_URL);
+		basicDataSource.setMaxTotal(maxSize);
+		basicDataSource.setMaxIdle(Math.max(30, minIdle));
+		basicDataSource.setMinIdle(minIdle);
+		basicDataSource.setInitialSize(minIdle);
+		basicDataSource.setMaxWaitMillis(10000);
+		basicDataSource.setMaxConnLifetimeMillis(1800000);
+		basicDataSource.setValidationQueryTimeout(3);
+		basicDataSource.setPoolPreparedStatements(true);
+		basicDataSource.setMaxOpenPreparedStatements(50);
+		return basicDataSource;
+	}
+
+	/**
+	 * Returns a connection (not in auto-commit mode) to the benchmark database; start() must
+	 * have been called
+	 */
+	public static Connection getConnection() throws Exception
+	{
+		Connection conn = datasource.getConnection();
+		conn.setAutoCommit(false);
+		return conn;
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the accounts, key generator and connection pool benchmarks at 1, 2, 4, ... up to N
+ * threads (and N itself) and then tradeBuildDB and the remote call codecs once. The codecs run with the GC profiler, so their bytes allocated per call (gc.alloc.rate.norm)
+ * are added to the summary as well.
+ *
+ * Usage: java -jar target/benchmarks.jar [-t maxThreads] [-o resultsDir] [-b benchmarkRegex]
+ *
+ * For each thread count the JMH results are written to resultsDir/accounts-t{threads}.json,
+ * and every score is appended to resultsDir/summary.csv (benchmark, mode, threads, score,
+ * error, unit and, for the SampleTime mode, the latency percentiles). Name the results directory after the commit (e.g. -o results/$(git rev-parse --short HEAD))
+ * to compare runs across commits.
+ *
+ */
+
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws Exception
+	{
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		String resultsDir = "target/jmh-results";
+		String include = null;
+		for (int i = 0; i < args.length - 1; i += 2)
+		{
+			if ("-t".equals(args[i])) maxThreads = Integer.parseInt(args[i + 1]);
+			else if ("-o".equals(args[i])) resultsDir = args[i + 1];
+			else if ("-b".equals(args[i])) include = args[i + 1];
+			else throw new IllegalArgumentException("BenchmarkRunner: unknown option " + args[i]);
+		}
+
+		// the benchmarks run at each thread count
+		String threadSweepBenchmarks = AccountsServiceBenchmark.class.getSimpleName() + "|" + KeySequenceBenchmark.class.getSimpleName()
+				+ "|" + ConnectionPoolBenchmark.class.getSimpleName();
+
+		File dir = new File(resultsDir);
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IllegalStateException("BenchmarkRunner: cannot create " + dir);
+		}
+
+		PrintWriter summary = new PrintWriter(new FileWriter(new File(dir, "summary.csv")));
+		try
+		{
+			summary.println("benchmark,mode,threads,score,error,unit,p50,p99,p99.9");
+
+			for (int threads : getThreadCounts(maxThreads))
+			{
+				ChainedOptionsBuilder options = options(include != null ? include : threadSweepBenchmarks)
+						.threads(threads)
+						.result(new File(dir, "accounts-t" + threads + ".json").getPath());
+				writeSummary(summary, threads, new Runner(options.build()).run());
+			}
+
+			if (include == null)
+			{
+				ChainedOptionsBuilder options = options(TradeBuildDBBenchmark.class.getSimpleName())
+						.result(new File(dir, "tradeBuildDB.json").getPath());
+				writeSummary(summary, 1, new Runner(options.build()).run());
+
+				options = options(RemoteCallCodecBenchmark.class.getSimpleName())
+						.addProfiler(GCProfiler.class)
+						.result(new File(dir, "remoteCallCodec.json").getPath());
+				writeSummary(summary, 1, new Runner(options.build()).run());
+			}
+		}
+		finally
+		{
+			summary.close();
+		}
+	}
+
+	private static ChainedOptionsBuilder options(String include)
+	{
+		return new OptionsBuilder()
+				.include(include)
+				.resultFormat(ResultFormatType.JSON)
+				.jvmArgsAppend("-Dlog4j.configurationFile=log4j2-benchmarks.xml");
+	}
+
+	/*
+	 * 1, 2, 4, ... below maxThreads, then maxThreads
+	 */
+	static List<Integer> getThreadCounts(int maxThreads)
+	{
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for (int threads = 1; threads < maxThreads; threads *= 2)
+		{
+			threadCounts.add(threads);
+		}
+		threadCounts.add(Math.max(1, maxThreads));
+		return threadCounts;
+	}
+
+	private static void writeSummary(PrintWriter summary, int threads, Collection<RunResult> results)
+	{
+		for (RunResult result : results)
+		{
+			String benchmark = result.getParams().getBenchmark();
+			for (String param : result.getParams().getParamsKeys())
+			{
+				benchmark += ":" + param + "=" + result.getParams().getParam(param);
+			}
+			Result<?> primary = result.getPrimaryResult();
+			String percentiles = ",,";
+			if (result.getParams().getMode() == Mode.SampleTime)
+			{
+				percentiles = primary.getStatistics().getPercentile(50) + "," + primary.getStatistics().getPercentile(99)
+						+ "," + primary.getStatistics().getPercentile(99.9);
+			}
+			summary.println(benchmark + "," + result.getParams().getMode().shortLabel() + "," + threads + "," 
+					+ primary.getScore() + "," + primary.getScoreError() + "," + primary.getScoreUnit() + "," + percentiles);
+			for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet())
+			{
+				// JMH prefixes the labels of the profilers with a middle dot
+				if (!secondary.getKey().endsWith("gc.alloc.rate.norm")) continue;
+				Result<?> allocated = secondary.getValue();
+				summary.println(benchmark + ":gc.alloc.rate.norm," + result.getParams().getMode().shortLabel() + "," + threads + "," 
+						+ allocated.getScore() + "," + allocated.getScoreError() + "," + allocated.getScoreUnit() + ",,,");
+			}
+		}
+		summary.flush();
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checkout overhead and the latency percentiles of the connection pools the accounts
+ * datasource can use (DAYTRADER_DATABASE_POOL): Tomcat DBCP and HikariCP.
+ *
+ * checkout only borrows and returns a connection, so it measures the pool itself (including
+ * its validation on borrow); query also runs a trivial statement like a short transaction.
+ * With more threads than maxSize the threads wait for connections, like a burst of requests
+ * on a small pool; compare the p99 of the SampleTime mode. Sweep the threads with
+ * BenchmarkRunner or -t.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionPoolBenchmark
+{
+	@Param({ "dbcp", "hikari" })
+	public String pool;
+
+	@Param("100")
+	public int maxSize;
+
+	@Param("10")
+	public int minIdle;
+
+	private DataSource datasource;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		datasource = BenchmarkEnvironment.createDataSource(pool, maxSize, minIdle);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		if (datasource instanceof AutoCloseable) ((AutoCloseable) datasource).close();
+	}
+
+	@Benchmark
+	public boolean checkout() throws Exception
+	{
+		Connection conn = datasource.getConnection();
+		try
+		{
+			return conn.getAutoCommit();
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+
+	@Benchmark
+	public int query() throws Exception
+	{
+		Connection conn = datasource.getConnection();
+		try
+		{
+			PreparedStatement stmt = conn.prepareStatement("values 1");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			int value = rs.getInt(1);
+			rs.close();
+			stmt.close();
+			return value;
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+}
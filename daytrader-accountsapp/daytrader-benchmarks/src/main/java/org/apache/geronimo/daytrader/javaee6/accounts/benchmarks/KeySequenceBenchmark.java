@@ -0,0 +1,94 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.core.direct.KeySequenceDirect;
+import org.apache.geronimo.daytrader.javaee6.utils.KeyRange;
+import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
+
+/**
+ * The keys per second and the latency percentiles of KeySequenceDirect, the key generator
+ * behind every register, across block sizes.
+ *
+ * Small blocks run out every few keys, so their scores are dominated by the block
+ * allocations (a database round trip under a lock); the largest block shows the cost of
+ * the in-memory path. SampleTime reports the percentiles, including the occasional key
+ * that waits for a new block. Sweep the threads with BenchmarkRunner or -t.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeySequenceBenchmark
+{
+	@Param({ "10", "100", "1000", "10000" })
+	public int keyBlockSize;
+
+	/** The keys taken at once by claimIDs (the bulk load batch) */
+	@Param("100")
+	public int claimSize;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		BenchmarkEnvironment.start(0);
+		TradeConfig.KEYBLOCKSIZE = keyBlockSize;
+		// a new key generator (and empty blocks) for each block size
+		KeySequenceDirect.initialize(BenchmarkEnvironment.getConnection());
+	}
+
+	@Benchmark
+	public int nextIntID() throws Exception
+	{
+		return KeySequenceDirect.getNextIntID("account");
+	}
+
+	@Benchmark
+	public Integer nextID() throws Exception
+	{
+		return KeySequenceDirect.getNextID("account");
+	}
+
+	@Benchmark
+	public int claimIDs() throws Exception
+	{
+		// the number of keys claimed; fewer than claimSize at the end of a block
+		KeyRange keys = KeySequenceDirect.claimIDs("account", claimSize);
+		return keys.size();
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.math.BigDecimal;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.PortfoliosRemoteCallService;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+
+/**
+ * An in-process stand-in for the portfolios microservice, so the benchmarks measure the
+ * accounts service and its database rather than the network.
+ *
+ * The system property daytrader.benchmarks.portfoliosLatencyMicros adds a fixed delay to
+ * each call to approximate a remote portfolios (default 0).
+ *
+ */
+
+public class PortfoliosStub extends PortfoliosRemoteCallService
+{
+	private static final BigDecimal INITIAL_BALANCE = new BigDecimal("10000.00");
+
+	private static final long latencyMicros = Long.getLong("daytrader.benchmarks.portfoliosLatencyMicros", 0);
+
+	@Override
+	public AccountDataBean getAccountData(String userID) throws Exception
+	{
+		delay();
+		AccountDataBean portfolioData = new AccountDataBean();
+		portfolioData.setProfileID(userID);
+		portfolioData.setBalance(INITIAL_BALANCE);
+		portfolioData.setOpenBalance(INITIAL_BALANCE);
+		return portfolioData;
+	}
+
+	@Override
+	public AccountDataBean register(AccountDataBean accountData) throws Exception
+	{
+		delay();
+		if (accountData.getOpenBalance() == null) accountData.setOpenBalance(INITIAL_BALANCE);
+		if (accountData.getBalance() == null) accountData.setBalance(accountData.getOpenBalance());
+		return accountData;
+	}
+
+	private static void delay() throws InterruptedException
+	{
+		if (latencyMicros > 0)
+		{
+			Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.JsonCodec;
+import org.apache.geronimo.daytrader.javaee6.accounts.service.PortfoliosRemoteCallService;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountDataBean;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountProfileDataBean;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The time and the bytes allocated to encode the request body and decode the response body
+ * of a Portfolios call (an account with its profile), through Strings as the remote calls
+ * used to and streamed through the JsonCodec of PortfoliosRemoteCallService.
+ *
+ * The connection is modeled in memory: the request is written to a sink that discards it and
+ * the response is read from the bytes the Portfolios would send. The strings path leaves out
+ * the decoding of the response into a String (Jersey reads it through a Reader), so it is a
+ * lower bound of the old cost. Run it with the GC profiler (-prof gc, BenchmarkRunner does) and
+ * compare gc.alloc.rate.norm, the bytes allocated per call.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoteCallCodecBenchmark
+{
+	private ObjectMapper mapper;
+	private JsonCodec<AccountDataBean> codec;
+	private AccountDataBean accountData;
+	private byte[] responseBytes;
+	private final Sink sink = new Sink();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		// configured like the mapper of PortfoliosRemoteCallService
+		mapper = new ObjectMapper();
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		codec = PortfoliosRemoteCallService.getAccountDataCodec();
+
+		accountData = AccountDataBean.getRandomInstance();
+		accountData.setProfile(AccountProfileDataBean.getRandomInstance());
+		responseBytes = mapper.writeValueAsBytes(accountData);
+	}
+
+	@Benchmark
+	public AccountDataBean strings() throws Exception
+	{
+		String request = mapper.writeValueAsString(accountData);
+		sink.write(request.getBytes(StandardCharsets.UTF_8));
+		String response = new String(responseBytes, StandardCharsets.UTF_8);
+		return mapper.readValue(response, AccountDataBean.class);
+	}
+
+	@Benchmark
+	public AccountDataBean streamed() throws Exception
+	{
+		codec.write(accountData, sink);
+		return codec.read(new ByteArrayInputStream(responseBytes));
+	}
+
+	/*
+	 * Counts and discards the bytes written, like a socket that never blocks
+	 */
+	private static class Sink extends OutputStream
+	{
+		long count = 0;
+
+		@Override
+		public void write(int b)
+		{
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+}
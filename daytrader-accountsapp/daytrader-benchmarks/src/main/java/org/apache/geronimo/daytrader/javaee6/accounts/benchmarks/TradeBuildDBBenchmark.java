@@ -0,0 +1,74 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.AccountsService;
+
+/**
+ * The time tradeBuildDB takes to (re)populate the accounts database.
+ *
+ * Each invocation deletes the users and builds them again; tradeBuildDB runs its own
+ * partitions in parallel, so the benchmark itself runs on one thread.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Threads(1)
+@Fork(1)
+public class TradeBuildDBBenchmark
+{
+	@Param("10000")
+	public int users;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	private AccountsService accountsService;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		accountsService = BenchmarkEnvironment.start(0);
+	}
+
+	@Benchmark
+	public Boolean tradeBuildDB() throws Exception
+	{
+		return accountsService.tradeBuildDB(users, 0, 0, 0, parallelism);
+	}
+}
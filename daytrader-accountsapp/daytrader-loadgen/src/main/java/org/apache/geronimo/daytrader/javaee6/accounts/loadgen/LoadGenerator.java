@@ -0,0 +1,484 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.loadgen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.RemoteClientPool;
+import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
+
+/**
+ * Drives a mix of Accounts REST calls against a running instance and writes the latency
+ * percentiles and the throughput of each operation.
+ *
+ * Usage: java -jar target/loadgen.jar [-u url] [-m open|closed] [-r rate] [-c concurrency]
+ *        [-d durationSecs] [-w warmupSecs] [-n users] [-x mix] [-p password] [-o resultsDir]
+ *
+ * - open loop (-m open): the calls arrive at a fixed rate (-r calls per second) whatever the
+ *   response times; up to -c calls are in flight and the others wait in a queue.
+ * - closed loop (-m closed, the default): -c users call the service one call after the other.
+ *   With -r, the users are paced so that together they make -r calls per second.
+ *
+ * The users are dealt from TradeConfig's shuffled deck of uid:0 .. uid:(n-1), so every user
+ * is used once before any user is used again (the accounts must exist, see tradeBuildDB).
+ * The calls made during the warmup are not recorded.
+ *
+ * The results directory gets summary.csv (per operation and in total: count, errors,
+ * throughput and the corrected and uncorrected latency percentiles in milliseconds), the
+ * HdrHistogram percentile distribution of each operation ({operation}.hgrm and
+ * {operation}-uncorrected.hgrm) and the settings of the run (run.properties). A closed
+ * loop without a rate has no schedule to correct against, so only its uncorrected
+ * latencies are written.
+ *
+ */
+
+public class LoadGenerator
+{
+	static
+	{
+		// the accounts classes log through log4j; keep it quiet unless configured otherwise
+		if (System.getProperty("log4j.configurationFile") == null)
+		{
+			System.setProperty("log4j.configurationFile", "log4j2-loadgen.xml");
+		}
+	}
+
+	// after the configuration is set above
+	private static final Logger log = LogManager.getLogger(LoadGenerator.class);
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final String accountsServiceRoute;
+	private final OperationMix mix;
+	private final String password;
+	private final boolean openLoop;
+	private final double rate;
+	private final int concurrency;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final boolean scheduled;
+
+	private final Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	private volatile long measureStart;
+	private volatile long end;
+	private int dropped = 0;
+
+	public LoadGenerator(String accountsServiceRoute, OperationMix mix, String password, boolean openLoop, 
+			double rate, int concurrency, int warmupSecs, int durationSecs)
+	{
+		if (openLoop && rate <= 0)
+		{
+			throw new IllegalArgumentException("LoadGenerator: the open loop needs a rate (-r)");
+		}
+		if (concurrency <= 0)
+		{
+			throw new IllegalArgumentException("LoadGenerator: the concurrency (-c) must be positive");
+		}
+		this.accountsServiceRoute = accountsServiceRoute;
+		this.mix = mix;
+		this.password = password;
+		this.openLoop = openLoop;
+		this.rate = rate;
+		this.concurrency = concurrency;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSecs);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSecs);
+
+		// the calls are scheduled unless a closed loop runs flat out
+		scheduled = openLoop || rate > 0;
+		for (Operation operation : mix.getOperations())
+		{
+			stats.put(operation, new OperationStats(operation, scheduled));
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String url = System.getenv("DAYTRADER_ACCOUNTS_SERVICE");
+		if (url == null) url = "https://localhost:1443";
+		String mode = "closed";
+		double rate = 0;
+		int concurrency = 16;
+		int durationSecs = 60;
+		int warmupSecs = 10;
+		int users = TradeConfig.getMAX_USERS();
+		String mix = OperationMix.DEFAULT_MIX;
+		String password = "xxx";
+		String resultsDir = "target/loadgen-results";
+		for (int i = 0; i < args.length - 1; i += 2)
+		{
+			if ("-u".equals(args[i])) url = args[i + 1];
+			else if ("-m".equals(args[i])) mode = args[i + 1];
+			else if ("-r".equals(args[i])) rate = Double.parseDouble(args[i + 1]);
+			else if ("-c".equals(args[i])) concurrency = Integer.parseInt(args[i + 1]);
+			else if ("-d".equals(args[i])) durationSecs = Integer.parseInt(args[i + 1]);
+			else if ("-w".equals(args[i])) warmupSecs = Integer.parseInt(args[i + 1]);
+			else if ("-n".equals(args[i])) users = Integer.parseInt(args[i + 1]);
+			else if ("-x".equals(args[i])) mix = args[i + 1];
+			else if ("-p".equals(args[i])) password = args[i + 1];
+			else if ("-o".equals(args[i])) resultsDir = args[i + 1];
+			else throw new IllegalArgumentException("LoadGenerator: unknown option " + args[i]);
+		}
+		if (!"open".equals(mode) && !"closed".equals(mode))
+		{
+			throw new IllegalArgumentException("LoadGenerator: the mode (-m) is open or closed but got " + mode);
+		}
+
+		// the deck of users that rndUserID deals from
+		TradeConfig.setMAX_USERS(users);
+
+		LoadGenerator generator = new LoadGenerator(url, new OperationMix(mix), password, "open".equals(mode), 
+				rate, concurrency, warmupSecs, durationSecs);
+		log.info("LoadGenerator: " + generator.getSettings());
+		try
+		{
+			generator.run();
+		}
+		finally
+		{
+			RemoteClientPool.shutdown();
+		}
+
+		File dir = new File(resultsDir);
+		generator.writeResults(dir);
+		log.info("LoadGenerator: results written to " + dir.getAbsolutePath());
+	}
+
+	/**
+	 * Runs the warmup and the measured period
+	 */
+	public void run() throws InterruptedException
+	{
+		long start = System.nanoTime();
+		measureStart = start + warmupNanos;
+		end = measureStart + durationNanos;
+
+		ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(threadFactory("daytrader-loadgen-progress"));
+		progress.scheduleAtFixedRate(new Runnable()
+		{
+			private final long startMillis = System.currentTimeMillis();
+
+			public void run()
+			{
+				log.info("LoadGenerator: " + (System.currentTimeMillis() - startMillis) / 1000 + "s " 
+						+ completed.sumThenReset() + " calls, " + failed.sumThenReset() + " errors");
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+
+		try
+		{
+			if (openLoop) runOpenLoop(start);
+			else runClosedLoop(start);
+		}
+		finally
+		{
+			progress.shutdownNow();
+		}
+	}
+
+	/*
+	 * Schedules the calls at a fixed rate and hands them to the workers; a call that waits
+	 * for a worker is timed from its scheduled start, and a call that is dropped still counts
+	 * in the corrected latencies from its scheduled start to the end of the run
+	 */
+	private void runOpenLoop(long start) throws InterruptedException
+	{
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory("daytrader-loadgen-worker"));
+		try
+		{
+			for (long i = 0; ; i++)
+			{
+				// computed from the start (not accumulated) so rounding doesn't drift the rate
+				long intendedStart = start + (long) (i * NANOS_PER_SECOND / rate);
+				if (intendedStart - end >= 0) break;
+				waitUntil(intendedStart);
+				workers.execute(new ScheduledCall(intendedStart));
+			}
+		}
+		finally
+		{
+			workers.shutdown();
+			// the calls still queued when the service can't keep up are dropped after a grace period
+			if (!workers.awaitTermination(60, TimeUnit.SECONDS))
+			{
+				List<Runnable> notRun = workers.shutdownNow();
+				long droppedAt = System.nanoTime();
+				dropped = notRun.size();
+				for (Runnable call : notRun)
+				{
+					recordDropped(((ScheduledCall) call).intendedStart, droppedAt);
+				}
+				log.warn("LoadGenerator: dropped " + dropped + " calls the service could not keep up with");
+				workers.awaitTermination(60, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/*
+	 * Runs one thread per user; with a rate, each user makes its calls on a fixed schedule
+	 * and a call that starts late (behind a slow one) is timed from its scheduled start
+	 */
+	private void runClosedLoop(final long start) throws InterruptedException
+	{
+		final long interval = (rate > 0) ? (long) (concurrency * NANOS_PER_SECOND / rate) : 0;
+		ThreadFactory factory = threadFactory("daytrader-loadgen-user");
+		Thread[] users = new Thread[concurrency];
+		for (int t = 0; t < concurrency; t++)
+		{
+			// spread the users' schedules over one interval
+			final long firstStart = start + (interval * t) / concurrency;
+			users[t] = factory.newThread(new Runnable()
+			{
+				public void run()
+				{
+					long nextStart = firstStart;
+					while (true)
+					{
+						long intendedStart;
+						if (interval > 0)
+						{
+							intendedStart = nextStart;
+							nextStart += interval;
+							if (intendedStart - end >= 0) break;
+							waitUntil(intendedStart);
+						}
+						else
+						{
+							intendedStart = System.nanoTime();
+							if (intendedStart - end >= 0) break;
+						}
+						call(intendedStart);
+					}
+				}
+			});
+			users[t].start();
+		}
+		for (Thread user : users)
+		{
+			user.join();
+		}
+	}
+
+	private void call(long intendedStart)
+	{
+		Operation operation = mix.next();
+		String userID = TradeConfig.rndUserID();
+		boolean measured = intendedStart - measureStart >= 0;
+		long callStart = System.nanoTime();
+		try
+		{
+			operation.invoke(accountsServiceRoute, userID, password);
+			if (measured) stats.get(operation).record(intendedStart, callStart, System.nanoTime());
+			completed.increment();
+		}
+		catch (Throwable t)
+		{
+			if (measured) stats.get(operation).recordError(t);
+			failed.increment();
+		}
+	}
+
+	private void recordDropped(long intendedStart, long droppedAt)
+	{
+		if (intendedStart - measureStart >= 0) stats.get(mix.next()).recordDropped(intendedStart, droppedAt);
+	}
+
+	/*
+	 * A call of the open loop; its scheduled start is kept in case it is dropped
+	 */
+	private class ScheduledCall implements Runnable
+	{
+		private final long intendedStart;
+
+		ScheduledCall(long intendedStart)
+		{
+			this.intendedStart = intendedStart;
+		}
+
+		public void run()
+		{
+			call(intendedStart);
+		}
+	}
+
+	private static void waitUntil(long nanoTime)
+	{
+		long remaining;
+		while ((remaining = nanoTime - System.nanoTime()) > 0)
+		{
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * Writes summary.csv, the percentile distributions and run.properties to the directory
+	 */
+	public void writeResults(File dir) throws Exception
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IllegalStateException("LoadGenerator: cannot create " + dir);
+		}
+
+		double seconds = (double) durationNanos / NANOS_PER_SECOND;
+		Histogram totalCorrected = new Histogram(3);
+		Histogram totalUncorrected = new Histogram(3);
+		long totalErrors = 0;
+
+		PrintWriter summary = new PrintWriter(new FileWriter(new File(dir, "summary.csv")));
+		try
+		{
+			summary.println("operation,latency,count,errors,throughput,mean,p50,p90,p99,p99.9,p99.99,max");
+			for (OperationStats operationStats : stats.values())
+			{
+				Histogram uncorrectedHistogram = operationStats.getUncorrected();
+				String name = operationStats.getOperation().name();
+				if (scheduled)
+				{
+					Histogram correctedHistogram = operationStats.getCorrected();
+					writeSummary(summary, name, "corrected", correctedHistogram, operationStats.getCount(), operationStats.getErrors(), seconds);
+					writeDistribution(new File(dir, name + ".hgrm"), correctedHistogram);
+					totalCorrected.add(correctedHistogram);
+				}
+				writeSummary(summary, name, "uncorrected", uncorrectedHistogram, operationStats.getCount(), operationStats.getErrors(), seconds);
+				writeDistribution(new File(dir, name + "-uncorrected.hgrm"), uncorrectedHistogram);
+
+				totalUncorrected.add(uncorrectedHistogram);
+				totalErrors += operationStats.getErrors();
+				if (operationStats.getFirstError() != null)
+				{
+					log.warn("LoadGenerator: " + name + " failed " + operationStats.getErrors() + " times, first with " + operationStats.getFirstError());
+				}
+			}
+			if (scheduled)
+			{
+				writeSummary(summary, "total", "corrected", totalCorrected, totalUncorrected.getTotalCount(), totalErrors, seconds);
+			}
+			writeSummary(summary, "total", "uncorrected", totalUncorrected, totalUncorrected.getTotalCount(), totalErrors, seconds);
+		}
+		finally
+		{
+			summary.close();
+		}
+
+		PrintWriter run = new PrintWriter(new FileWriter(new File(dir, "run.properties")));
+		try
+		{
+			run.println("url=" + accountsServiceRoute);
+			run.println("mode=" + (openLoop ? "open" : "closed"));
+			run.println("rate=" + rate);
+			run.println("concurrency=" + concurrency);
+			run.println("warmupSecs=" + TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+			run.println("durationSecs=" + TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+			run.println("users=" + TradeConfig.getMAX_USERS());
+			run.println("mix=" + mix);
+			run.println("dropped=" + dropped);
+		}
+		finally
+		{
+			run.close();
+		}
+	}
+
+	/*
+	 * One line of summary.csv; the throughput counts the successful calls per second and
+	 * the latencies are in milliseconds
+	 */
+	private static void writeSummary(PrintWriter summary, String operation, String latency, Histogram histogram, 
+			long count, long errors, double seconds)
+	{
+		summary.println(operation + "," + latency + "," + count + "," + errors + "," + String.format("%.1f", count / seconds) 
+				+ "," + millis(histogram.getMean()) 
+				+ "," + millis(histogram.getValueAtPercentile(50)) 
+				+ "," + millis(histogram.getValueAtPercentile(90)) 
+				+ "," + millis(histogram.getValueAtPercentile(99)) 
+				+ "," + millis(histogram.getValueAtPercentile(99.9)) 
+				+ "," + millis(histogram.getValueAtPercentile(99.99)) 
+				+ "," + millis(histogram.getMaxValue()));
+	}
+
+	/*
+	 * The percentile distribution in milliseconds, as plotted by the HdrHistogram plotter
+	 */
+	private static void writeDistribution(File file, Histogram histogram) throws Exception
+	{
+		PrintStream out = new PrintStream(new FileOutputStream(file));
+		try
+		{
+			histogram.outputPercentileDistribution(out, 1000.0);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static String millis(double micros)
+	{
+		return String.format("%.3f", micros / 1000.0);
+	}
+
+	private String getSettings()
+	{
+		return (openLoop ? "open loop at " + rate + " calls/s with up to " + concurrency + " in flight"
+				: "closed loop with " + concurrency + " users" + ((rate > 0) ? " paced at " + rate + " calls/s" : ""))
+				+ ", " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s warmup, " 
+				+ TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s measured, " + TradeConfig.getMAX_USERS() + " users, mix " + mix
+				+ " against " + accountsServiceRoute;
+	}
+
+	private static ThreadFactory threadFactory(final String name)
+	{
+		return new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.loadgen;
+
+// Jackson
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// DayTrader
+import org.apache.geronimo.daytrader.javaee6.accounts.service.BaseRemoteCallService;
+import org.apache.geronimo.daytrader.javaee6.entities.AccountProfileDataBean;
+import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
+
+/**
+ * The Accounts REST calls the load generator drives, with the request shapes of the
+ * AccountsRemoteCallService used by the integration tests.
+ *
+ * The responses are read but not parsed; a call fails when the service answers with
+ * an error status (see BaseRemoteCallService#checkResponse).
+ *
+ */
+
+public enum Operation
+{
+	login
+	{
+		void invoke(String accountsServiceRoute, String userID, String password) throws Exception
+		{
+			BaseRemoteCallService.invokeEndpoint(accountsServiceRoute + "/login/" + userID, "PATCH", password);
+		}
+	},
+
+	getAccount
+	{
+		void invoke(String accountsServiceRoute, String userID, String password) throws Exception
+		{
+			// Entity must be null for http method GET.
+			BaseRemoteCallService.invokeEndpoint(accountsServiceRoute + "/accounts/" + userID, "GET", null);
+		}
+	},
+
+	getProfile
+	{
+		void invoke(String accountsServiceRoute, String userID, String password) throws Exception
+		{
+			// Entity must be null for http method GET.
+			BaseRemoteCallService.invokeEndpoint(accountsServiceRoute + "/accounts/" + userID + "/profiles", "GET", null);
+		}
+	},
+
+	updateProfile
+	{
+		void invoke(String accountsServiceRoute, String userID, String password) throws Exception
+		{
+			// keep the password so the user can still log in
+			AccountProfileDataBean profileData = new AccountProfileDataBean();
+			profileData.setUserID(userID);
+			profileData.setPassword(password);
+			profileData.setFullName(TradeConfig.rndFullName());
+			profileData.setAddress(TradeConfig.rndAddress());
+			profileData.setEmail(TradeConfig.rndEmail(userID));
+			profileData.setCreditCard(TradeConfig.rndCreditCard());
+			BaseRemoteCallService.invokeEndpoint(accountsServiceRoute + "/accounts/" + userID + "/profiles", "PUT", 
+					mapper.writeValueAsString(profileData));
+		}
+	},
+
+	logout
+	{
+		void invoke(String accountsServiceRoute, String userID, String password) throws Exception
+		{
+			BaseRemoteCallService.invokeEndpoint(accountsServiceRoute + "/logout/" + userID, "PATCH", "");
+		}
+	};
+
+	private static final ObjectMapper mapper = new ObjectMapper(); // create once, reuse
+
+	/**
+	 * Calls the operation for the user; throws if the call fails
+	 */
+	abstract void invoke(String accountsServiceRoute, String userID, String password) throws Exception;
+}
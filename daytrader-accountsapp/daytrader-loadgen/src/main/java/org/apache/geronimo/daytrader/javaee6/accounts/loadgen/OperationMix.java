@@ -0,0 +1,103 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.loadgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The weighted mix of operations, e.g. "login=20,getAccount=30,getProfile=25,updateProfile=10,logout=15".
+ *
+ * The weights are relative; they don't have to add up to 100. An operation left out of
+ * the mix is never called.
+ *
+ */
+
+public class OperationMix
+{
+	public static final String DEFAULT_MIX = "login=20,getAccount=30,getProfile=25,updateProfile=10,logout=15";
+
+	private final Map<Operation, Integer> weights = new LinkedHashMap<Operation, Integer>();
+	private final Operation[] operations;
+	private final int[] cumulativeWeights;
+	private final int totalWeight;
+
+	public OperationMix(String mix)
+	{
+		for (String entry : mix.split(","))
+		{
+			String[] nameAndWeight = entry.trim().split("=");
+			if (nameAndWeight.length != 2)
+			{
+				throw new IllegalArgumentException("OperationMix: expected operation=weight but got " + entry);
+			}
+			Operation operation = Operation.valueOf(nameAndWeight[0].trim());
+			int weight = Integer.parseInt(nameAndWeight[1].trim());
+			if (weight < 0)
+			{
+				throw new IllegalArgumentException("OperationMix: negative weight for " + operation);
+			}
+			if (weight > 0) weights.put(operation, weight);
+		}
+		if (weights.isEmpty())
+		{
+			throw new IllegalArgumentException("OperationMix: no operation in the mix " + mix);
+		}
+
+		operations = weights.keySet().toArray(new Operation[weights.size()]);
+		cumulativeWeights = new int[operations.length];
+		int sum = 0;
+		for (int i = 0; i < operations.length; i++)
+		{
+			sum += weights.get(operations[i]);
+			cumulativeWeights[i] = sum;
+		}
+		totalWeight = sum;
+	}
+
+	/**
+	 * Picks the next operation at random according to the weights
+	 */
+	public Operation next()
+	{
+		int r = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (int i = 0; i < cumulativeWeights.length; i++)
+		{
+			if (r < cumulativeWeights[i]) return operations[i];
+		}
+		return operations[operations.length - 1];
+	}
+
+	public Operation[] getOperations()
+	{
+		return operations.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder mix = new StringBuilder();
+		for (Map.Entry<Operation, Integer> entry : weights.entrySet())
+		{
+			if (mix.length() > 0) mix.append(',');
+			mix.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return mix.toString();
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.accounts.loadgen;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The latencies (in microseconds) and errors of one operation.
+ *
+ * Two histograms are kept. The corrected one measures each call from the time it was
+ * scheduled to start, so a stall of the service also counts against the calls that
+ * queued up (or were held back) behind it; this corrects for coordinated omission. The
+ * uncorrected one measures each call from the time it was actually sent (the service time).
+ * A call that was dropped because the service could not keep up is only in the corrected
+ * histogram, from the time it was scheduled to start to the time it was dropped.
+ *
+ * Calls that have no schedule (a closed loop without a target rate) have nothing to be
+ * corrected against, so only their uncorrected latencies are kept.
+ *
+ */
+
+public class OperationStats
+{
+	private final Operation operation;
+	private final boolean scheduled;
+
+	// 3 significant digits; the histograms resize to the largest value recorded
+	private final Histogram corrected = new ConcurrentHistogram(3);
+	private final Histogram uncorrected = new ConcurrentHistogram(3);
+	private final LongAdder errors = new LongAdder();
+	private final AtomicReference<String> firstError = new AtomicReference<String>();
+
+	public OperationStats(Operation operation, boolean scheduled)
+	{
+		this.operation = operation;
+		this.scheduled = scheduled;
+	}
+
+	public Operation getOperation()
+	{
+		return operation;
+	}
+
+	/**
+	 * Records a completed call; all times are System.nanoTime() values
+	 */
+	public void record(long intendedStart, long start, long end)
+	{
+		uncorrected.recordValue(toMicros(end - start));
+		if (scheduled) corrected.recordValue(toMicros(end - intendedStart));
+	}
+
+	/**
+	 * Records a scheduled call that was never sent
+	 */
+	public void recordDropped(long intendedStart, long droppedAt)
+	{
+		if (scheduled) corrected.recordValue(toMicros(droppedAt - intendedStart));
+	}
+
+	public void recordError(Throwable t)
+	{
+		errors.increment();
+		firstError.compareAndSet(null, t.toString());
+	}
+
+	public long getCount()
+	{
+		return uncorrected.getTotalCount();
+	}
+
+	public long getErrors()
+	{
+		return errors.sum();
+	}
+
+	public String getFirstError()
+	{
+		return firstError.get();
+	}
+
+	/**
+	 * Returns the latencies corrected for coordinated omission, or null if the calls had no schedule
+	 */
+	public Histogram getCorrected()
+	{
+		return scheduled ? corrected.copy() : null;
+	}
+
+	/**
+	 * Returns the service times
+	 */
+	public Histogram getUncorrected()
+	{
+		return uncorrected.copy();
+	}
+
+	private static long toMicros(long nanos)
+	{
+		return Math.max(0, nanos / 1000);
+	}
+}
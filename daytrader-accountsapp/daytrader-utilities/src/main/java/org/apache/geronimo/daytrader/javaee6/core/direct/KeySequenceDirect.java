@@ -16,10 +16,13 @@
  */
 package org.apache.geronimo.daytrader.javaee6.core.direct;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.HashMap;
-import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -29,98 +32,248 @@ import org.apache.geronimo.daytrader.javaee6.utils.*;
 
 public class KeySequenceDirect {
 
-    private static HashMap keyMap = new HashMap();
+	// Keys are issued from an in-memory KeyRange per key name with an atomic counter; there is
+	// no global lock on the hot path. When the current block drops below the low-water mark
+	// (TradeConfig.KEYBLOCKLOWWATERMARK percent of the block size), the next block is allocated
+	// in the background so it is ready (double-buffered) by the time the current one runs out.
+    private static volatile ConcurrentMap<String, KeyAllocator> keyMap = new ConcurrentHashMap<String, KeyAllocator>();
     private static Connection conn = null;
 
+    // Serializes the use of the keygen connection; only block allocation takes this lock.
+    private static final ReentrantLock connLock = new ReentrantLock();
+    private static volatile int generation = 0;
+
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    	public Thread newThread(Runnable r) {
+    		Thread thread = new Thread(r, "daytrader-keyblock-prefetch");
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+    });
+
 	// re-factored this class so that it manages its own
     // connection instead of commiting another pending transaction
-    // that may be in progress.  
-    public static synchronized void initialize(Connection conn) 
+    // that may be in progress.
+    public static void initialize(Connection conn)
     {
-    	KeySequenceDirect.keyMap = new HashMap();
-       	try 
+    	connLock.lock();
+    	try
     	{
-    		if (KeySequenceDirect.conn != null) KeySequenceDirect.conn.close();
-    	} 
-    	catch (Throwable t) 
+    		// blocks allocated for the previous connection are discarded
+    		generation++;
+    		KeySequenceDirect.keyMap = new ConcurrentHashMap<String, KeyAllocator>();
+    		try
+    		{
+    			if (KeySequenceDirect.conn != null) KeySequenceDirect.conn.close();
+    		}
+    		catch (Throwable t)
+    		{
+    			Log.error("Ignored exception closing a connection.", t);
+    		}
+    		KeySequenceDirect.conn = conn;
+    	}
+    	finally
     	{
-     		Log.error("Ignored exception closing a connection.", t);
+    		connLock.unlock();
     	}
-    	KeySequenceDirect.conn = conn;    	
     }
 
-    public static synchronized Integer getNextID(String keyName)
+    public static Integer getNextID(String keyName)
+        throws Exception {
+        return getNextIntID(keyName);
+    }
+
+    /**
+     * Returns a new unique key as a primitive int (no boxing)
+     */
+    public static int getNextIntID(String keyName)
         throws Exception {
-        Integer nextID = null;
         // First verify we have allocated a block of keys
         // for this key name
         // Then verify the allocated block has not been depleted
         // allocate a new block if necessary
-        if (keyMap.containsKey(keyName) == false) allocNewBlock(keyName);
-        Collection block = (Collection) keyMap.get(keyName);
-
-        Iterator ids = block.iterator();
-        if (ids.hasNext() == false)
-            ids = allocNewBlock(keyName).iterator();
-        // get and return a new unique key
-        nextID = (Integer) ids.next();
+        KeyAllocator allocator = getAllocator(keyName);
+        int nextID = allocator.next();
 
         if (Log.doTrace())
-            Log.trace("KeySequenceDirect:getNextID()--> Returning new PK ID for Entity type: "
+            Log.trace("KeySequenceDirect:getNextIntID()--> Returning new PK ID for Entity type: "
                 + keyName + " ID=" + nextID);
         return nextID;
     }
 
-    private static Collection allocNewBlock(String keyName) throws Exception 
+    /**
+     * Reserves up to n contiguous unique keys at once for bulk inserts. Fewer keys are
+     * returned when the current block has fewer left; claim again for the remainder.
+     */
+    public static KeyRange claimIDs(String keyName, int n)
+        throws Exception {
+        KeyRange keys = getAllocator(keyName).claim(n);
+
+        if (Log.doTrace())
+            Log.trace("KeySequenceDirect:claimIDs()--> Returning new PK IDs for Entity type: "
+                + keyName + " IDs=" + keys.getMin() + ".." + keys.getMax());
+        return keys;
+    }
+
+    private static KeyAllocator getAllocator(String keyName) {
+    	ConcurrentMap<String, KeyAllocator> map = keyMap;
+    	KeyAllocator allocator = map.get(keyName);
+    	if (allocator == null) {
+    		KeyAllocator newAllocator = new KeyAllocator(keyName);
+    		allocator = map.putIfAbsent(keyName, newAllocator);
+    		if (allocator == null) allocator = newAllocator;
+    	}
+    	return allocator;
+    }
+
+    /*
+     * Issues the keys of one key name from the current block and prefetches the next block
+     */
+    private static class KeyAllocator {
+    	private final String keyName;
+    	private final int allocGeneration;
+    	private volatile KeyRange current = new KeyRange(0, -1); // empty until the first block is allocated
+    	private volatile KeyRange prefetched = null;
+    	private final AtomicBoolean prefetching = new AtomicBoolean(false);
+    	private final ReentrantLock lock = new ReentrantLock();
+
+    	KeyAllocator(String keyName) {
+    		this.keyName = keyName;
+    		this.allocGeneration = generation;
+    	}
+
+    	int next() throws Exception {
+    		while (true) {
+    			KeyRange block = current;
+    			int id = block.nextInt();
+    			if (id != KeyRange.DEPLETED) {
+    				if (block.getMax() - id < lowWaterMark()) prefetch();
+    				return id;
+    			}
+    			switchBlock(block);
+    		}
+    	}
+
+    	KeyRange claim(int n) throws Exception {
+    		while (true) {
+    			KeyRange block = current;
+    			KeyRange keys = block.claim(n);
+    			if (keys != null) {
+    				if (block.remaining() < lowWaterMark()) prefetch();
+    				return keys;
+    			}
+    			switchBlock(block);
+    		}
+    	}
+
+    	/*
+    	 * The current block is depleted; switch to the prefetched block or, if it isn't
+    	 * there yet (e.g. on first use), allocate one synchronously
+    	 */
+    	private void switchBlock(KeyRange depleted) throws Exception {
+    		lock.lock();
+    		try {
+    			if (current != depleted) return; // another thread already switched
+    			KeyRange block = prefetched;
+    			if (block != null) {
+    				prefetched = null;
+    			} else {
+    				block = allocNewBlock(keyName, allocGeneration, depleted);
+    			}
+    			current = block;
+    		} finally {
+    			lock.unlock();
+    		}
+    	}
+
+    	private void prefetch() {
+    		if (prefetched != null || !prefetching.compareAndSet(false, true)) return;
+    		final KeyRange depleting = current;
+    		prefetcher.execute(new Runnable() {
+    			public void run() {
+    				try {
+    					KeyRange block = allocNewBlock(keyName, allocGeneration, depleting);
+    					lock.lock();
+    					try {
+    						// Even if the current block was switched synchronously meanwhile, the
+    						// block is kept for the next switch so no key is skipped; the blocks
+    						// are then issued out of order, which is fine for unique keys
+    						prefetched = block;
+    					} finally {
+    						lock.unlock();
+    					}
+    				} catch (Throwable t) {
+    					Log.error("KeySequenceDirect:prefetch() - failure to prefetch a block of keys for entity: " + keyName, t);
+    				} finally {
+    					prefetching.set(false);
+    				}
+    			}
+    		});
+    	}
+
+    	private static int lowWaterMark() {
+    		return (TradeConfig.KEYBLOCKSIZE * TradeConfig.KEYBLOCKLOWWATERMARK) / 100;
+    	}
+    }
+
+    private static KeyRange allocNewBlock(String keyName, int allocGeneration, KeyRange previous) throws Exception
     {
-    	Collection block = null;
-        try 
-        {	
-            PreparedStatement stmt = conn.prepareStatement(getKeyForUpdateSQL);
-            stmt.setString(1, keyName);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) 
-            {
-                // No keys found for this name - create a new one
-                PreparedStatement stmt2 = conn.prepareStatement(createKeySQL);
-                // fix unique constraint exception
-                int keyVal = 0;
-                if (keyMap.containsKey(keyName))
-                {
-                    KeyBlock innerBlock = (KeyBlock) keyMap.get(keyName);
-                    ListIterator ids = innerBlock.listIterator();
-                    if (ids.hasPrevious() == true)
-                	   keyVal = (Integer)ids.previous() + 1; 
-                }
-                stmt2.setString(1, keyName);
-                stmt2.setInt(2, keyVal);
-                stmt2.executeUpdate();
-                stmt2.close();
-                stmt.close();
-                stmt = conn.prepareStatement(getKeyForUpdateSQL);
-                stmt.setString(1, keyName);
-                rs = stmt.executeQuery();
-                rs.next();
-            }
-            int keyVal = rs.getInt("keyval");
-            stmt.close();
-
-            stmt = conn.prepareStatement(updateKeyValueSQL);
-            stmt.setInt(1, keyVal + TradeConfig.KEYBLOCKSIZE);
-            stmt.setString(2, keyName);
-            stmt.executeUpdate();
-            stmt.close();
-
-            block = new KeyBlock(keyVal, keyVal + TradeConfig.KEYBLOCKSIZE - 1);
-            keyMap.put(keyName, block);
-           	conn.commit();
-        } catch (Exception e) {
-            conn.rollback();
-            throw new Exception("Failure to allocate new block of keys for entity: " + keyName, e);
-        } finally {
-            // Do not release this connection. Keygen will use it until re-initialized
-        }
-        return block;
+    	connLock.lock();
+    	try
+    	{
+    		if (allocGeneration != generation)
+    		{
+    			throw new Exception("Key generator was re-initialized while allocating keys for entity: " + keyName);
+    		}
+    		KeyRange block = null;
+    		try
+    		{
+    			PreparedStatement stmt = conn.prepareStatement(getKeyForUpdateSQL);
+    			stmt.setString(1, keyName);
+    			ResultSet rs = stmt.executeQuery();
+    			if (!rs.next())
+    			{
+    				// No keys found for this name - create a new one
+    				PreparedStatement stmt2 = conn.prepareStatement(createKeySQL);
+    				// fix unique constraint exception
+    				int keyVal = 0;
+    				if (previous != null && previous.getMax() >= 0)
+    				{
+    					keyVal = previous.getMax() + 1;
+    				}
+    				stmt2.setString(1, keyName);
+    				stmt2.setInt(2, keyVal);
+    				stmt2.executeUpdate();
+    				stmt2.close();
+    				stmt.close();
+    				stmt = conn.prepareStatement(getKeyForUpdateSQL);
+    				stmt.setString(1, keyName);
+    				rs = stmt.executeQuery();
+    				rs.next();
+    			}
+    			int keyVal = rs.getInt("keyval");
+    			stmt.close();
+
+    			stmt = conn.prepareStatement(updateKeyValueSQL);
+    			stmt.setInt(1, keyVal + TradeConfig.KEYBLOCKSIZE);
+    			stmt.setString(2, keyName);
+    			stmt.executeUpdate();
+    			stmt.close();
+
+    			block = new KeyRange(keyVal, keyVal + TradeConfig.KEYBLOCKSIZE - 1);
+    			conn.commit();
+    		} catch (Exception e) {
+    			conn.rollback();
+    			throw new Exception("Failure to allocate new block of keys for entity: " + keyName, e);
+    		} finally {
+    			// Do not release this connection. Keygen will use it until re-initialized
+    		}
+    		return block;
+    	}
+    	finally
+    	{
+    		connLock.unlock();
+    	}
     }
 
     private static final String getKeyForUpdateSQL = "select * from keygenejb kg where kg.keyname = ?  for update";
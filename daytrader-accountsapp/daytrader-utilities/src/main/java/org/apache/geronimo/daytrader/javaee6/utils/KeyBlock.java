@@ -18,6 +18,11 @@ package org.apache.geronimo.daytrader.javaee6.utils;
 
 import java.util.AbstractSequentialList;
 import java.util.ListIterator;
+
+/**
+ * @deprecated boxes every key and locks on every next(); use {@link KeyRange} instead
+ */
+@Deprecated
 public class KeyBlock extends AbstractSequentialList 
 {
 
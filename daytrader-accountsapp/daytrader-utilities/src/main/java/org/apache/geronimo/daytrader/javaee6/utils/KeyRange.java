@@ -0,0 +1,100 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.geronimo.daytrader.javaee6.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A contiguous range [min, max] of primary keys that can be shared between threads.
+ *
+ * Unlike KeyBlock, keys are issued as primitive ints without locking or boxing; nextInt()
+ * is a single atomic increment. claim(n) reserves a contiguous sub-range at once so bulk
+ * loads can take the keys for a whole batch in one step.
+ */
+public class KeyRange
+{
+	/** Returned by nextInt() once every key in the range has been issued */
+	public static final int DEPLETED = -1;
+
+	// min and max provide range of valid primary keys for this KeyRange
+	private final int min;
+	private final int max;
+	private final AtomicInteger next;
+
+	/**
+	 * Constructor for KeyRange
+	 */
+	public KeyRange(int min, int max)
+	{
+		this.min = min;
+		this.max = max;
+		this.next = new AtomicInteger(min);
+	}
+
+	/**
+	 * Returns the next key or DEPLETED if every key has been issued
+	 */
+	public int nextInt()
+	{
+		int key = next.getAndIncrement();
+		return (key <= max && key >= min) ? key : DEPLETED;
+	}
+
+	/**
+	 * Reserves up to n contiguous keys; fewer are returned when fewer remain
+	 *
+	 * @return the reserved keys or null if every key has been issued
+	 */
+	public KeyRange claim(int n)
+	{
+		if (n < 1) throw new IllegalArgumentException("KeyRange:claim() -- Error n must be positive: " + n);
+		while (true)
+		{
+			int first = next.get();
+			if (first > max || first < min) return null;
+			int last = (int) Math.min((long) first + n - 1, max);
+			if (next.compareAndSet(first, last + 1))
+			{
+				return new KeyRange(first, last);
+			}
+		}
+	}
+
+	public int getMin()
+	{
+		return min;
+	}
+
+	public int getMax()
+	{
+		return max;
+	}
+
+	public int size()
+	{
+		return (max - min) + 1;
+	}
+
+	/**
+	 * Returns the number of keys not yet issued
+	 */
+	public int remaining()
+	{
+		int key = next.get();
+		return (key > max || key < min) ? 0 : (max - key) + 1;
+	}
+}
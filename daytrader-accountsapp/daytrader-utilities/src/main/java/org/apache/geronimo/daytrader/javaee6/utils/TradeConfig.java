@@ -18,7 +18,10 @@ package org.apache.geronimo.daytrader.javaee6.utils;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -42,11 +45,12 @@ public class TradeConfig {
     private static int MAX_USERS = 200;
     private static int MAX_QUOTES = 400;
     private static int MAX_HOLDINGS = 10;
-    private static int count = 0;
+    private static final AtomicInteger count = new AtomicInteger();
     private static String hostName = null;
     
     /* Trade Config Miscellaneous itmes */
     public static int KEYBLOCKSIZE = 1000;
+    public static int KEYBLOCKLOWWATERMARK = 20; // percent of KEYBLOCKSIZE left when the next block is prefetched
     public static int QUOTES_PER_PAGE = 10;
     
     private static Random r0 = new Random(System.currentTimeMillis());
@@ -183,12 +187,12 @@ public class TradeConfig {
      * Returns a new Trade user
      * Creation date: (2/16/2000 8:50:35 PM)
      */
-    public synchronized static String rndNewUserID() {
+    public static String rndNewUserID() {
 
         return newUserPrefix
             + getHostname()
             + System.currentTimeMillis()
-            + count++;
+            + count.getAndIncrement();
     }
 
     public static float rndPrice() {
@@ -239,23 +243,31 @@ public class TradeConfig {
         return nextUser;
     }
     
-    private static synchronized String getNextUserIDFromDeck() {
-        int numUsers = getMAX_USERS();
-        if (deck == null) {
-            deck = new ArrayList(numUsers);
+    // Lock-free, so the request threads dealing users don't contend on a monitor
+    private static String getNextUserIDFromDeck() {
+        List<Integer> users = deck.get();
+        if (users == null) {
+            int numUsers = getMAX_USERS();
+            List<Integer> newDeck = new ArrayList<Integer>(numUsers);
             for (int i = 0; i < numUsers; i++)
-                deck.add(i, new Integer(i));
-            java.util.Collections.shuffle(deck, r0);
+                newDeck.add(i, new Integer(i));
+            java.util.Collections.shuffle(newDeck, r0);
+            // another thread may have dealt a deck meanwhile; use the first one
+            if (deck.compareAndSet(null, newDeck))
+                users = newDeck;
+            else
+                users = deck.get();
+            if (users == null)
+                users = newDeck;
         }
-        if (card >= numUsers)
-            card = 0;
-        return "uid:" + deck.get(card++);
+        int next = card.getAndIncrement() & Integer.MAX_VALUE;
+        return "uid:" + users.get(next % Math.max(1, users.size()));
     }
     
     //Trade implements a card deck approach to selecting 
     // users for trading with tradescenarioservlet
-    private static ArrayList deck = null;
-    private static int card = 0;
+    private static final AtomicReference<List<Integer>> deck = new AtomicReference<List<Integer>>();
+    private static final AtomicInteger card = new AtomicInteger();
 
     /**
      * Gets the orderProcessingModeNames
@@ -280,7 +292,7 @@ public class TradeConfig {
      */
     public static void setMAX_USERS(int mAX_USERS) {
         MAX_USERS = mAX_USERS;
-        deck = null; // reset the card deck for selecting users
+        deck.set(null); // reset the card deck for selecting users
     }
 
     /**
@@ -0,0 +1,193 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.geronimo.daytrader.javaee6.core.direct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.geronimo.daytrader.javaee6.utils.KeyRange;
+import org.apache.geronimo.daytrader.javaee6.utils.TradeConfig;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Stress test of KeySequenceDirect: many threads take keys at once (one at a time and in
+ * claimed ranges) with block sizes small enough that the blocks run out, and are prefetched,
+ * constantly. No key may be issued twice and no key of an allocated block may be skipped.
+ */
+public class KeySequenceDirectStressTest
+{
+	private static final String DATABASE_URL = "jdbc:derby:memory:keygen-stress;create=true";
+	private static final int THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	private static final int KEYS_PER_THREAD = 500;
+
+	private final int keyBlockSize = TradeConfig.KEYBLOCKSIZE;
+
+	@BeforeClass
+	public static void createKeyTable() throws Exception
+	{
+		Connection conn = DriverManager.getConnection(DATABASE_URL);
+		Statement stmt = conn.createStatement();
+		stmt.executeUpdate("CREATE TABLE KEYGENEJB (KEYVAL INTEGER NOT NULL, KEYNAME VARCHAR(250) NOT NULL)");
+		stmt.executeUpdate("ALTER TABLE KEYGENEJB ADD CONSTRAINT PK_KEYGENEJB PRIMARY KEY (KEYNAME)");
+		stmt.close();
+		conn.close();
+	}
+
+	@After
+	public void restoreKeyBlockSize()
+	{
+		TradeConfig.KEYBLOCKSIZE = keyBlockSize;
+	}
+
+	@Test
+	public void nextIntIDIsUniqueAndSkipsNoKeys() throws Exception
+	{
+		for (int blockSize : new int[] { 1, 7, 100, 1000 })
+		{
+			stress("next-" + blockSize, blockSize, false);
+		}
+	}
+
+	@Test
+	public void claimIDsIsUniqueAndSkipsNoKeys() throws Exception
+	{
+		for (int blockSize : new int[] { 1, 7, 100, 1000 })
+		{
+			stress("claim-" + blockSize, blockSize, true);
+		}
+	}
+
+	private void stress(final String keyName, int blockSize, final boolean claim) throws Exception
+	{
+		TradeConfig.KEYBLOCKSIZE = blockSize;
+		KeySequenceDirect.initialize(newConnection());
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+		try
+		{
+			for (int t = 0; t < THREADS; t++)
+			{
+				results.add(threads.submit(new Callable<int[]>()
+				{
+					public int[] call() throws Exception
+					{
+						int[] keys = new int[KEYS_PER_THREAD];
+						start.await();
+						int i = 0;
+						while (i < keys.length)
+						{
+							if (claim && ThreadLocalRandom.current().nextBoolean())
+							{
+								int n = 1 + ThreadLocalRandom.current().nextInt(Math.min(50, keys.length - i));
+								KeyRange range = KeySequenceDirect.claimIDs(keyName, n);
+								for (int key = range.nextInt(); key != KeyRange.DEPLETED; key = range.nextInt())
+								{
+									keys[i++] = key;
+								}
+							}
+							else
+							{
+								keys[i++] = KeySequenceDirect.getNextIntID(keyName);
+							}
+						}
+						return keys;
+					}
+				}));
+			}
+			start.countDown();
+
+			BitSet issued = new BitSet();
+			int count = 0;
+			for (Future<int[]> result : results)
+			{
+				for (int key : result.get())
+				{
+					assertFalse("key " + key + " of " + keyName + " was issued twice", issued.get(key));
+					issued.set(key);
+					count++;
+				}
+			}
+			assertEquals(THREADS * KEYS_PER_THREAD, count);
+
+			// Every key below the allocated high-water mark must be issued eventually; keep
+			// taking keys on one thread until the unissued blocks are used up
+			int allocated = getAllocatedKeys(keyName);
+			int extra = 0;
+			while (issued.nextClearBit(0) < allocated && extra < allocated + 4 * blockSize)
+			{
+				int key = KeySequenceDirect.getNextIntID(keyName);
+				assertFalse("key " + key + " of " + keyName + " was issued twice", issued.get(key));
+				issued.set(key);
+				extra++;
+			}
+			assertTrue("key " + issued.nextClearBit(0) + " of " + keyName + " was skipped",
+					issued.nextClearBit(0) >= allocated);
+		}
+		finally
+		{
+			threads.shutdownNow();
+		}
+	}
+
+	private static int getAllocatedKeys(String keyName) throws Exception
+	{
+		Connection conn = newConnection();
+		try
+		{
+			PreparedStatement stmt = conn.prepareStatement("select keyval from keygenejb where keyname = ?");
+			stmt.setString(1, keyName);
+			ResultSet rs = stmt.executeQuery();
+			assertTrue(rs.next());
+			int keyVal = rs.getInt(1);
+			stmt.close();
+			conn.commit();
+			return keyVal;
+		}
+		finally
+		{
+			conn.close();
+		}
+	}
+
+	private static Connection newConnection() throws Exception
+	{
+		Connection conn = DriverManager.getConnection(DATABASE_URL);
+		conn.setAutoCommit(false);
+		return conn;
+	}
+}